@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.Map;
+
+import android.content.Context;
+
+import org.uniqush.client.Message;
+
+/**
+ * The app side for the benchmarks: one account, and a handler which drops
+ * everything.
+ */
+public class BenchUserInfoProvider implements UserInfoProvider {
+	static final ConnectionInfo INFO = new ConnectionInfo("127.0.0.1", 0,
+			"benchsvc", "benchuser", false, true, 1024, 4096, "title");
+
+	private MessageHandler handler = new MessageHandler() {
+		@Override
+		public void onMessageFromServer(String dstService, String dstUser,
+				String id, Message msg) {
+		}
+
+		@Override
+		public void onMessageFromUser(String dstService, String dstUser,
+				String srcService, String srcUser, String id, Message msg) {
+		}
+
+		@Override
+		public void onMessageDigestFromServer(boolean online,
+				String dstService, String dstUser, int size, String id,
+				Map<String, String> parameters) {
+		}
+
+		@Override
+		public void onMessageDigestFromUser(boolean online, String dstService,
+				String dstUser, String srcService, String srcUser, int size,
+				String id, Map<String, String> parameters) {
+		}
+
+		@Override
+		public void onCloseStart() {
+		}
+
+		@Override
+		public void onClosed() {
+		}
+
+		@Override
+		public void onError(Exception e) {
+		}
+
+		@Override
+		public void onMissingAccount() {
+		}
+
+		@Override
+		public void onServiceDestroyed() {
+		}
+
+		@Override
+		public void onResult(int id, Exception e) {
+		}
+	};
+
+	public BenchUserInfoProvider(Context context) {
+	}
+
+	@Override
+	public String getPassword(String service, String username) {
+		return "password";
+	}
+
+	@Override
+	public ConnectionInfo getConnectionInfo() {
+		return INFO;
+	}
+
+	@Override
+	public String[] getSenderIds() {
+		return new String[] { "1234567890" };
+	}
+
+	@Override
+	public MessageHandler getMessageHandler(String service, String username) {
+		return handler;
+	}
+}
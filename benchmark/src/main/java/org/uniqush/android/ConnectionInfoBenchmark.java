@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The checks made on every command: is it the same connection, and does it
+ * need to be configured again. The hash is taken on every lookup in the
+ * connection pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionInfoBenchmark {
+	private ConnectionInfo current = new ConnectionInfo("push.example.com",
+			8964, "benchsvc", "benchuser", true, true, 1024, 4096, "title",
+			"sender", "type");
+	private ConnectionInfo same = new ConnectionInfo("push.example.com", 8964,
+			"benchsvc", "benchuser", true, true, 1024, 4096, "title", "sender",
+			"type");
+	private ConnectionInfo otherUser = new ConnectionInfo("push.example.com",
+			8964, "benchsvc", "otheruser", true, true, 1024, 4096, "title",
+			"sender", "type");
+	private ConnectionInfo otherFields = new ConnectionInfo(
+			"push.example.com", 8964, "benchsvc", "benchuser", true, true,
+			1024, 4096, "title", "sender", "kind");
+	private ConnectionInfo reordered = new ConnectionInfo("push.example.com",
+			8964, "benchsvc", "benchuser", true, true, 1024, 4096, "type",
+			"title", "sender");
+
+	@Benchmark
+	public boolean equalsSame() {
+		return current.equals(same);
+	}
+
+	@Benchmark
+	public boolean equalsOtherUser() {
+		return current.equals(otherUser);
+	}
+
+	@Benchmark
+	public int hashCodeSame() {
+		return same.hashCode();
+	}
+
+	@Benchmark
+	public boolean shouldReconfigSame() {
+		return current.shouldReconfig(same);
+	}
+
+	@Benchmark
+	public boolean shouldReconfigReordered() {
+		return current.shouldReconfig(reordered);
+	}
+
+	@Benchmark
+	public boolean shouldReconfigOtherFields() {
+		return current.shouldReconfig(otherFields);
+	}
+}
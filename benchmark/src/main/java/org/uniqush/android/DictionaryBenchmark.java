@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.uniqush.android;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.uniqush.client.Message;
+
+/**
+ * Small chat messages compressed with a preset dictionary, against plain
+ * deflate and no compression. The CPU per message is what JMH measures; the
+ * bytes on the wire are printed once per trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DictionaryBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] WORDS = { "hey", "are", "you", "coming",
+			"tonight", "ok", "see", "you", "at", "the", "station", "lol",
+			"thanks", "sure", "what", "time", "running", "late", "sorry",
+			"meeting", "moved", "to", "tomorrow", "call", "me", "when",
+			"free", "on", "my", "way" };
+	private static final int CORPUS_SIZE = 1024;
+
+	private Message[] corpus;
+	private Message[] compressed;
+	private Deflater plain;
+	private byte[] buf;
+	private int next;
+
+	/**
+	 * A chat message as an app might send it: JSON with the same keys every
+	 * time, and a short text.
+	 */
+	static Message newChatMessage(Random random) {
+		StringBuilder text = new StringBuilder();
+		int words = 1 + random.nextInt(12);
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				text.append(' ');
+			}
+			text.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		String json = "{\"type\":\"chat\",\"conversation\":\"conv-"
+				+ random.nextInt(1000) + "\",\"from\":\"user"
+				+ random.nextInt(100000) + "\",\"sentAt\":"
+				+ (1700000000000L + random.nextInt(1000000000))
+				+ ",\"client\":\"android-3.2." + random.nextInt(10)
+				+ "\",\"text\":\"" + text + "\"}";
+		Message msg = new Message();
+		msg.put("type", "chat");
+		msg.setBody(json.getBytes(UTF8));
+		return msg;
+	}
+
+	/**
+	 * Trained on messages other than the ones measured.
+	 */
+	static byte[] newDictionary() {
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 32; i++) {
+			sb.append(new String(newChatMessage(random).getBody(), UTF8));
+		}
+		return sb.toString().getBytes(UTF8);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		CompressionDictionary.add(1, newDictionary());
+		Random random = new Random(7);
+		corpus = new Message[CORPUS_SIZE];
+		compressed = new Message[CORPUS_SIZE];
+		plain = new Deflater();
+		buf = new byte[8192];
+		long raw = 0;
+		long withDictionary = 0;
+		long withDeflate = 0;
+		for (int i = 0; i < CORPUS_SIZE; i++) {
+			corpus[i] = newChatMessage(random);
+			compressed[i] = CompressionDictionary.compress(corpus[i]);
+			raw += corpus[i].getBody().length;
+			withDictionary += compressed[i].getBody().length;
+			if (compressed[i] != corpus[i]) {
+				withDictionary += CompressionDictionary.HEADER.length() + 1;
+			}
+			withDeflate += deflate(corpus[i].getBody());
+		}
+		System.out.printf("%nbody bytes per message: raw %.1f, deflate %.1f,"
+				+ " dictionary %.1f%n", (double) raw / CORPUS_SIZE,
+				(double) withDeflate / CORPUS_SIZE, (double) withDictionary
+						/ CORPUS_SIZE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		plain.end();
+		CompressionDictionary.clear();
+	}
+
+	private int deflate(byte[] data) {
+		plain.reset();
+		plain.setInput(data);
+		plain.finish();
+		int n = 0;
+		while (!plain.finished()) {
+			n += plain.deflate(buf);
+		}
+		return n;
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (CORPUS_SIZE - 1);
+		return next;
+	}
+
+	@Benchmark
+	public int plainDeflate() {
+		return deflate(corpus[nextIndex()].getBody());
+	}
+
+	@Benchmark
+	public Message compressWithDictionary() {
+		return CompressionDictionary.compress(corpus[nextIndex()]);
+	}
+
+	@Benchmark
+	public Message decompressWithDictionary() {
+		return CompressionDictionary.decompress(compressed[nextIndex()]);
+	}
+}
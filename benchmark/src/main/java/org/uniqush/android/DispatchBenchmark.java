@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Intent;
+
+import org.uniqush.client.Message;
+
+/**
+ * Commands going through MessageCenterService.onStartCommand(), or through
+ * the bound MessageCenterBinder, against a connection which is already up.
+ * Only the dispatch is measured: the work itself is done on the service's own
+ * threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	private BenchContext context;
+	private MessageCenterService service;
+	private MessageCenterBinder binder;
+	private Message msg;
+	private ResultCallback callback = new ResultCallback() {
+		@Override
+		public void onResult(Exception e) {
+		}
+	};
+	private Intent sendToServer;
+	private Intent sendToUser;
+	private Intent requestMessage;
+	private Intent digest;
+	private List<String> msgIds;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		context = new BenchContext();
+		MessageCenter.init(context, BenchUserInfoProvider.class.getName());
+
+		service = new MessageCenterService();
+		service.onCreate();
+		binder = (MessageCenterBinder) service.onBind(null);
+		MessageCenter.connect(context, 1);
+		service.onStartCommand(context.started, 0, 1);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (MessageCenter.getConnectionState() != ConnectionStateListener.STATE_READY) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("not connected");
+			}
+			Thread.sleep(10);
+		}
+
+		msg = IntentMessageBenchmark.newMessage(256);
+		MessageCenter.sendMessageToServer(context, 0, msg);
+		sendToServer = context.started;
+		MessageCenter.sendMessageToUser(context, 0, "benchsvc", "friend", msg,
+				3600);
+		sendToUser = context.started;
+		MessageCenter.requestMessages(context, 0, "msgid-1");
+		requestMessage = context.started;
+
+		msgIds = new ArrayList<String>(16);
+		for (int i = 0; i < 16; i++) {
+			msgIds.add("msgid-" + i);
+		}
+
+		GCMIntentService gcm = new GCMIntentService();
+		gcm.onMessage(context, GcmPayloadBenchmark.newPush(4, false));
+		digest = context.started;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		service.onDestroy();
+	}
+
+	@Benchmark
+	public int sendMessageToServer() {
+		return service.onStartCommand(sendToServer, 0, 1);
+	}
+
+	@Benchmark
+	public int sendMessageToUser() {
+		return service.onStartCommand(sendToUser, 0, 1);
+	}
+
+	@Benchmark
+	public int requestMessage() {
+		return service.onStartCommand(requestMessage, 0, 1);
+	}
+
+	/**
+	 * From the app's call to the service, through an Intent.
+	 */
+	@Benchmark
+	public int intentSendMessageToServer() {
+		MessageCenter.sendMessageToServer(context, 0, msg);
+		return service.onStartCommand(context.started, 0, 1);
+	}
+
+	@Benchmark
+	public void binderSendMessageToServer() {
+		binder.sendMessageToServer(msg, null);
+	}
+
+	@Benchmark
+	public void binderSendMessageToServerWithCallback() {
+		binder.sendMessageToServer(msg, callback);
+	}
+
+	/**
+	 * 16 messages requested one by one, until all the results are in.
+	 */
+	@Benchmark
+	public void binderRequestMessagesOneByOne() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(msgIds.size());
+		ResultCallback cb = new ResultCallback() {
+			@Override
+			public void onResult(Exception e) {
+				done.countDown();
+			}
+		};
+		for (String id : msgIds) {
+			binder.requestMessage(id, cb);
+		}
+		done.await();
+	}
+
+	/**
+	 * The same 16 messages requested as a batch.
+	 */
+	@Benchmark
+	public void binderRequestMessagesBatch() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		binder.requestMessages(msgIds, new ResultCallback() {
+			@Override
+			public void onResult(Exception e) {
+				done.countDown();
+			}
+		});
+		done.await();
+	}
+
+	@Benchmark
+	public int messageDigest() {
+		return service.onStartCommand(digest, 0, 1);
+	}
+}
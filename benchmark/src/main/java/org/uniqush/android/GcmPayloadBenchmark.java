@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * GCMIntentService.onMessage(): from the GCM Intent to the Intent for the
+ * service. The legacy* benchmarks run the code it replaced, kept here for
+ * comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GcmPayloadBenchmark {
+	static final String DESCRIPTOR = "b5a2f0c4e6d8,1536,benchsvc,benchuser,benchsvc,friend";
+
+	@Param({ "0", "4", "16" })
+	public int params;
+
+	private BenchContext context;
+	private GCMIntentService gcm;
+	private DigestParser parser;
+	private Intent plain;
+	private Intent packed;
+
+	static Intent newPush(int params, boolean pack) {
+		Intent intent = new Intent();
+		intent.putExtra(DigestParser.DESCRIPTOR, DESCRIPTOR);
+		intent.putExtra(DigestParser.GCM_SENDER, "1234567890");
+		HashMap<String, String> p = new HashMap<String, String>();
+		for (int i = 0; i < params; i++) {
+			p.put("field" + i, "value of field " + i);
+		}
+		if (pack) {
+			intent.putExtra(DigestParser.PACKED, DigestParser.pack(p));
+		} else {
+			for (String k : p.keySet()) {
+				intent.putExtra(k, p.get(k));
+			}
+		}
+		return intent;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		context = new BenchContext();
+		gcm = new GCMIntentService();
+		parser = new DigestParser();
+		plain = newPush(params, false);
+		packed = newPush(params, true);
+	}
+
+	@Benchmark
+	public Intent onMessage() {
+		gcm.onMessage(context, plain);
+		return context.started;
+	}
+
+	@Benchmark
+	public Intent onMessagePacked() {
+		gcm.onMessage(context, packed);
+		return context.started;
+	}
+
+	@Benchmark
+	public Intent legacyOnMessage() {
+		legacyOnMessage(context, plain);
+		return context.started;
+	}
+
+	@Benchmark
+	public void parseDescriptor(Blackhole bh) {
+		parser.parse(DESCRIPTOR);
+		bh.consume(parser.getMsgId());
+		bh.consume(parser.getSize());
+		bh.consume(parser.getSender());
+	}
+
+	@Benchmark
+	public void legacySplitDescriptor(Blackhole bh) {
+		String[] elems = DESCRIPTOR.split(",");
+		bh.consume(elems[0]);
+		bh.consume(Integer.parseInt(elems[1]));
+		bh.consume(elems[5]);
+	}
+
+	private static final String TAG = "GCMIntentService";
+
+	// GCMIntentService.onMessage() before the single pass parser.
+	private static void legacyOnMessage(Context context, Intent intent) {
+		Log.i(TAG, "Received message");
+		Set<String> extras = intent.getExtras().keySet();
+		int size = 0;
+		String msgId = "";
+		String service = "";
+		String username = "";
+		String senderid = "";
+		String sender = null;
+		String senderService = null;
+
+		HashMap<String, String> params = new HashMap<String, String>(
+				extras.size());
+
+		for (String s : extras) {
+			Log.i(TAG, "[" + s + "]=" + intent.getStringExtra(s));
+			if (s.equals("uq.")) {
+				String[] elems = intent.getStringExtra(s).split(",");
+				if (elems.length < 4) {
+					return;
+				}
+				msgId = elems[0];
+				size = Integer.parseInt(elems[1]);
+				service = elems[2];
+				username = elems[3];
+
+				if (elems.length >= 6) {
+					senderService = elems[4];
+					sender = elems[5];
+				}
+			} else if (s.equals("from")) {
+				senderid = intent.getStringExtra(s);
+			} else {
+				params.put(s, intent.getStringExtra(s));
+			}
+		}
+
+		Intent i = new Intent(context, MessageCenterService.class);
+		i.putExtra("c", MessageCenterService.CMD_MESSAGE_DIGEST);
+		i.putExtra("params", params);
+		i.putExtra("msgId", msgId);
+		i.putExtra("service", service);
+		i.putExtra("user", username);
+		i.putExtra("size", size);
+		i.putExtra("senderid", senderid);
+		if (sender != null && !sender.equals("")) {
+			i.putExtra("sender", sender);
+			i.putExtra("senderService", senderService);
+		}
+		context.startService(i);
+	}
+}
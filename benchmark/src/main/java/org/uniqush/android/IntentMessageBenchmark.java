@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Intent;
+
+import org.uniqush.client.Message;
+
+/**
+ * A Message on its way from MessageCenter.sendMessageToServer() to the
+ * service: put into an Intent, then read back out of it. The legacy*
+ * benchmarks put it in as a Serializable, as it used to be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntentMessageBenchmark {
+	@Param({ "64", "1024", "16384" })
+	public int bodySize;
+
+	private BenchContext context;
+	private Message msg;
+	private HashMap<String, String> params;
+	private MessageCodec codec;
+
+	static Message newMessage(int bodySize) {
+		HashMap<String, String> header = new HashMap<String, String>();
+		header.put("title", "hello");
+		header.put("type", "chat");
+		header.put("sender", "friend");
+		byte[] body = new byte[bodySize];
+		new Random(bodySize).nextBytes(body);
+		return new Message(header, body);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		context = new BenchContext();
+		msg = newMessage(bodySize);
+		params = new HashMap<String, String>();
+		for (int i = 0; i < 4; i++) {
+			params.put("field" + i, "value of field " + i);
+		}
+		codec = new MessageCodec();
+	}
+
+	@Benchmark
+	public Message throughIntent() {
+		MessageCenter.sendMessageToServer(context, 1, msg);
+		Intent intent = context.started;
+		return codec.decodeMessage(intent.getByteArrayExtra("msg"));
+	}
+
+	@Benchmark
+	public Message legacyThroughIntent() {
+		Intent intent = new Intent(context, MessageCenterService.class);
+		intent.putExtra("c", MessageCenterService.CMD_SEND_MSG_TO_SERVER);
+		intent.putExtra("id", 1);
+		intent.putExtra("msg", msg);
+		return (Message) intent.getSerializableExtra("msg");
+	}
+
+	@Benchmark
+	public Message codec() {
+		return codec.decodeMessage(codec.encode(msg));
+	}
+
+	@Benchmark
+	public HashMap<String, String> paramsThroughIntent() {
+		Intent intent = new Intent();
+		intent.putExtra("params", codec.encode(params));
+		return codec.decodeMap(intent.getByteArrayExtra("params"));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Benchmark
+	public HashMap<String, String> legacyParamsThroughIntent() {
+		Intent intent = new Intent();
+		intent.putExtra("params", params);
+		return (HashMap<String, String>) intent.getSerializableExtra("params");
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.uniqush.android;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import android.os.SystemClock;
+
+/**
+ * Runs KeepaliveScheduler against simulated NATs, on a simulated clock, and
+ * prints how fast it finds each NAT's idle timeout, how many connections it
+ * loses on the way, and for how long the device cannot be reached because its
+ * connection is dead without knowing it.
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar org.uniqush.android.KeepaliveSimulation
+ * </pre>
+ */
+public class KeepaliveSimulation implements KeepaliveScheduler.Callback {
+	private static final long MINUTE = 60 * 1000;
+	private static final long DAY = 24 * 60 * MINUTE;
+	// How long TCP goes on retransmitting into a dead connection.
+	private static final long TCP_GIVE_UP = 15 * MINUTE;
+
+	/**
+	 * A NAT which forgets a connection once it has been idle for longer than
+	 * its timeout, and then drops its packets silently.
+	 */
+	static class Nat {
+		final long timeout;
+
+		Nat(long timeout) {
+			this.timeout = timeout;
+		}
+
+		boolean survives(long idle) {
+			return idle <= timeout;
+		}
+	}
+
+	private final String network;
+	private final Nat nat;
+	private final KeepalivePolicy policy;
+	private final KeepaliveScheduler scheduler;
+	private Connection conn;
+	private int generation;
+	// When the NAT last let something through on the connection.
+	private long lastThrough;
+	// When TCP gives up on the connection; 0 while it is alive.
+	private long failAt;
+	private long alarmAt;
+	private int keepalives;
+	private int drops;
+	private long unreachable;
+
+	KeepaliveSimulation(String network, Nat nat) {
+		this.network = network;
+		this.nat = nat;
+		this.policy = new KeepalivePolicy();
+		this.scheduler = new KeepaliveScheduler(Runnable::run, policy, this);
+	}
+
+	@Override
+	public List<Connection> getConnections() {
+		return Collections.singletonList(conn);
+	}
+
+	@Override
+	public String getNetwork() {
+		return network;
+	}
+
+	@Override
+	public void probe(Connection c) {
+		keepalives++;
+		write();
+	}
+
+	@Override
+	public void setAlarm(long at) {
+		alarmAt = at;
+	}
+
+	@Override
+	public void cancelAlarm() {
+		alarmAt = 0;
+	}
+
+	private static long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	private void connect() {
+		conn = new Connection(BenchUserInfoProvider.INFO, null, ++generation,
+				null, null);
+		conn.setApplied(BenchUserInfoProvider.INFO);
+		conn.ready();
+		lastThrough = now();
+		failAt = 0;
+	}
+
+	/**
+	 * Write something on the connection. It always works locally; the NAT
+	 * decides whether it gets anywhere.
+	 */
+	private void write() {
+		long now = now();
+		conn.touch();
+		if (failAt != 0) {
+			return;
+		}
+		if (nat.survives(now - lastThrough)) {
+			lastThrough = now;
+		} else {
+			failAt = now + TCP_GIVE_UP;
+			unreachable += failAt - (lastThrough + nat.timeout);
+		}
+	}
+
+	/**
+	 * @param trafficEvery
+	 *            Mean time between messages sent by the app; 0 for none.
+	 */
+	void run(long trafficEvery, Random random) {
+		SystemClock.setSimulated(0);
+		connect();
+		scheduler.start();
+		long nextTraffic = trafficEvery > 0 ? (long) (random.nextDouble()
+				* trafficEvery * 2) : Long.MAX_VALUE;
+		long settledAt = 0;
+		long lastInterval = -1;
+		long now = 0;
+		while (now < DAY) {
+			now = Math.min(alarmAt, nextTraffic);
+			if (failAt != 0) {
+				now = Math.min(now, failAt);
+			}
+			SystemClock.setSimulated(now);
+			if (now == failAt) {
+				drops++;
+				conn.close(new IOException("Connection timed out"));
+				scheduler.forget(conn, true);
+				connect();
+			} else if (now == nextTraffic) {
+				// Real traffic does the keepalive's job.
+				write();
+				nextTraffic = now
+						+ (long) (random.nextDouble() * trafficEvery * 2);
+			} else {
+				alarmAt = 0;
+				scheduler.onAlarm();
+				long interval = policy.getInterval(network);
+				if (interval != lastInterval) {
+					lastInterval = interval;
+					settledAt = now;
+				}
+			}
+		}
+		scheduler.stop();
+		SystemClock.setSimulated(-1);
+		System.out.printf("NAT timeout %5.1f min, traffic every %5s: "
+				+ "interval %5.1f min, settled after %5.1f h, "
+				+ "%4d keepalives, %2d drops, unreachable %4.1f h%n",
+				nat.timeout / (double) MINUTE, trafficEvery == 0 ? "never"
+						: (trafficEvery / MINUTE) + "m", lastInterval
+						/ (double) MINUTE, settledAt / (60.0 * MINUTE),
+				keepalives, drops, unreachable / (60.0 * MINUTE));
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		long[] timeouts = { 2 * MINUTE, 5 * MINUTE, 10 * MINUTE, 20 * MINUTE,
+				45 * MINUTE };
+		for (long t : timeouts) {
+			new KeepaliveSimulation("MOBILE:nat" + t, new Nat(t)).run(0,
+					random);
+		}
+		for (long t : timeouts) {
+			new KeepaliveSimulation("MOBILE:nat" + t, new Nat(t)).run(
+					15 * MINUTE, random);
+		}
+	}
+}
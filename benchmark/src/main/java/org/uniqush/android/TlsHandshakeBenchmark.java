@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.uniqush.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Opening a TlsTunnel against a local TLS stand-in server, with a full
+ * handshake every time, and with the session resumed. The handshake counts
+ * and the mean handshake time, from the tls.* metrics, are printed after
+ * each trial.
+ * 
+ * The server's certificate is made with the JDK's keytool when the trial
+ * starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+	private static final String PASSWORD = "benchmark";
+
+	private File keyStoreFile;
+	private SSLServerSocket server;
+	private ExecutorService threads;
+	private SSLContext client;
+	private MetricsExporter exporter = new MetricsExporter() {
+		@Override
+		public void onCounter(String name, long value) {
+			if (name.startsWith("tls.")) {
+				System.out.println(name + ": " + value);
+			}
+		}
+
+		@Override
+		public void onHistogram(String name, long count, long sum,
+				long[] buckets) {
+			if (name.startsWith("tls.") && count > 0) {
+				System.out.printf("%s: %d, mean %.1f us%n", name, count, sum
+						/ 1000.0 / count);
+			}
+		}
+	};
+
+	private static KeyStore newKeyStore(File file) throws Exception {
+		String keytool = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "keytool";
+		Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias",
+				"server", "-keyalg", "EC", "-dname", "CN=localhost", "-ext",
+				"SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+				"-storetype", "PKCS12", "-keystore", file.getPath(),
+				"-storepass", PASSWORD, "-keypass", PASSWORD)
+				.redirectErrorStream(true).start();
+		InputStream out = p.getInputStream();
+		while (out.read() >= 0) {
+		}
+		if (p.waitFor() != 0) {
+			throw new IllegalStateException("keytool failed");
+		}
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ks.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		return ks;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		keyStoreFile = File.createTempFile("uniqush-bench", ".p12");
+		keyStoreFile.delete();
+		KeyStore ks = newKeyStore(keyStoreFile);
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+		kmf.init(ks, PASSWORD.toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+
+		TrustManagerFactory tmf = TrustManagerFactory
+				.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		client = SSLContext.getInstance("TLS");
+		client.init(null, tmf.getTrustManagers(), null);
+
+		threads = Executors.newCachedThreadPool();
+		server = (SSLServerSocket) serverContext.getServerSocketFactory()
+				.createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		threads.execute(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		});
+		MessageCenter.setMetricsExporter(exporter, 0);
+	}
+
+	/**
+	 * The stand-in server: handshake, then echo until the client goes away.
+	 */
+	private void serve() {
+		while (!server.isClosed()) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						s.setTcpNoDelay(true);
+						((SSLSocket) s).startHandshake();
+						InputStream in = s.getInputStream();
+						OutputStream out = s.getOutputStream();
+						int b;
+						while ((b = in.read()) >= 0) {
+							out.write(b);
+							out.flush();
+						}
+					} catch (IOException e) {
+					} finally {
+						try {
+							s.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			});
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		System.out.println();
+		MessageCenter.exportMetrics();
+		MessageCenter.setMetricsExporter(null, 0);
+		server.close();
+		threads.shutdownNow();
+		keyStoreFile.delete();
+	}
+
+	/**
+	 * Open a tunnel and make one round trip through it, as the client library
+	 * would with its login. Under TLS 1.3 the session ticket only arrives
+	 * after the handshake, so nothing could be resumed without reading.
+	 */
+	private void open() throws IOException {
+		TlsTunnel t = new TlsTunnel(client, threads);
+		Socket s = null;
+		try {
+			int port = t.open("localhost", "127.0.0.1", server.getLocalPort());
+			s = new Socket("127.0.0.1", port);
+			s.setTcpNoDelay(true);
+			s.getOutputStream().write(1);
+			if (s.getInputStream().read() != 1) {
+				throw new IOException("bad echo");
+			}
+		} finally {
+			if (s != null) {
+				s.close();
+			}
+			t.close();
+		}
+	}
+
+	@Benchmark
+	public void fullHandshake() throws IOException {
+		SSLSessionContext sessions = client.getClientSessionContext();
+		Enumeration<byte[]> ids = sessions.getIds();
+		while (ids.hasMoreElements()) {
+			SSLSession session = sessions.getSession(ids.nextElement());
+			if (session != null) {
+				session.invalidate();
+			}
+		}
+		open();
+	}
+
+	@Benchmark
+	public void resumedHandshake() throws IOException {
+		open();
+	}
+}
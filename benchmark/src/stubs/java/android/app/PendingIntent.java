@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Stand-in for the framework class.
+ */
+public class PendingIntent {
+	public static final int FLAG_UPDATE_CURRENT = 0x08000000;
+
+	public static PendingIntent getService(Context context, int requestCode,
+			Intent intent, int flags) {
+		return new PendingIntent();
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.content;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the framework class. Preferences live in memory and files go
+ * to a temporary directory; starting, stopping or binding a service does
+ * nothing.
+ */
+public abstract class Context {
+	public static final int MODE_PRIVATE = 0;
+	public static final int BIND_AUTO_CREATE = 1;
+	public static final String CONNECTIVITY_SERVICE = "connectivity";
+	public static final String ALARM_SERVICE = "alarm";
+	public static final String POWER_SERVICE = "power";
+
+	private static final HashMap<String, Preferences> preferences = new HashMap<String, Preferences>();
+	private static File filesDir;
+
+	public SharedPreferences getSharedPreferences(String name, int mode) {
+		synchronized (preferences) {
+			Preferences p = preferences.get(name);
+			if (p == null) {
+				p = new Preferences();
+				preferences.put(name, p);
+			}
+			return p;
+		}
+	}
+
+	public File getFilesDir() {
+		synchronized (preferences) {
+			if (filesDir == null) {
+				filesDir = new File(System.getProperty("java.io.tmpdir"),
+						"uniqush-benchmark");
+				filesDir.mkdirs();
+			}
+			return filesDir;
+		}
+	}
+
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	public Object getSystemService(String name) {
+		return null;
+	}
+
+	public ComponentName startService(Intent service) {
+		return null;
+	}
+
+	public boolean stopService(Intent service) {
+		return false;
+	}
+
+	public boolean bindService(Intent service, ServiceConnection conn,
+			int flags) {
+		return false;
+	}
+
+	public void unbindService(ServiceConnection conn) {
+	}
+
+	private static class Preferences implements SharedPreferences {
+		private HashMap<String, Object> map = new HashMap<String, Object>();
+
+		@Override
+		public synchronized Map<String, ?> getAll() {
+			return new HashMap<String, Object>(map);
+		}
+
+		private synchronized Object get(String key) {
+			return map.get(key);
+		}
+
+		@Override
+		public String getString(String key, String defValue) {
+			Object v = get(key);
+			return v instanceof String ? (String) v : defValue;
+		}
+
+		@Override
+		public int getInt(String key, int defValue) {
+			Object v = get(key);
+			return v instanceof Integer ? (Integer) v : defValue;
+		}
+
+		@Override
+		public long getLong(String key, long defValue) {
+			Object v = get(key);
+			return v instanceof Long ? (Long) v : defValue;
+		}
+
+		@Override
+		public boolean getBoolean(String key, boolean defValue) {
+			Object v = get(key);
+			return v instanceof Boolean ? (Boolean) v : defValue;
+		}
+
+		@Override
+		public synchronized boolean contains(String key) {
+			return map.containsKey(key);
+		}
+
+		@Override
+		public Editor edit() {
+			return new PrefEditor(this);
+		}
+	}
+
+	private static class PrefEditor implements SharedPreferences.Editor {
+		private Preferences prefs;
+		private HashMap<String, Object> changes = new HashMap<String, Object>();
+		private boolean clear = false;
+
+		PrefEditor(Preferences prefs) {
+			this.prefs = prefs;
+		}
+
+		@Override
+		public SharedPreferences.Editor putString(String key, String value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putInt(String key, int value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putLong(String key, long value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor putBoolean(String key, boolean value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor remove(String key) {
+			changes.put(key, null);
+			return this;
+		}
+
+		@Override
+		public SharedPreferences.Editor clear() {
+			clear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			synchronized (prefs) {
+				if (clear) {
+					prefs.map.clear();
+				}
+				for (Map.Entry<String, Object> e : changes.entrySet()) {
+					if (e.getValue() == null) {
+						prefs.map.remove(e.getKey());
+					} else {
+						prefs.map.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.content;
+
+import java.io.Serializable;
+
+import android.os.Bundle;
+
+/**
+ * Stand-in for the framework class. The extras are kept in a Bundle, as in the
+ * real one.
+ */
+public class Intent {
+	private Bundle extras;
+
+	public Intent() {
+		extras = new Bundle();
+	}
+
+	public Intent(Context packageContext, Class<?> cls) {
+		this();
+	}
+
+	public Intent(Intent o) {
+		extras = new Bundle(o.extras);
+	}
+
+	public Intent putExtra(String name, int value) {
+		extras.putInt(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, long value) {
+		extras.putLong(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, boolean value) {
+		extras.putBoolean(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, String value) {
+		extras.putString(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, String[] value) {
+		extras.putStringArray(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, byte[] value) {
+		extras.putByteArray(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, Bundle value) {
+		extras.putBundle(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, Serializable value) {
+		extras.putSerializable(name, value);
+		return this;
+	}
+
+	public boolean hasExtra(String name) {
+		return extras.containsKey(name);
+	}
+
+	public int getIntExtra(String name, int defaultValue) {
+		return extras.getInt(name, defaultValue);
+	}
+
+	public long getLongExtra(String name, long defaultValue) {
+		return extras.getLong(name, defaultValue);
+	}
+
+	public boolean getBooleanExtra(String name, boolean defaultValue) {
+		return extras.getBoolean(name, defaultValue);
+	}
+
+	public String getStringExtra(String name) {
+		return extras.getString(name);
+	}
+
+	public String[] getStringArrayExtra(String name) {
+		return extras.getStringArray(name);
+	}
+
+	public byte[] getByteArrayExtra(String name) {
+		return extras.getByteArray(name);
+	}
+
+	public Bundle getBundleExtra(String name) {
+		return extras.getBundle(name);
+	}
+
+	public Serializable getSerializableExtra(String name) {
+		return extras.getSerializable(name);
+	}
+
+	public Bundle getExtras() {
+		return new Bundle(extras);
+	}
+}
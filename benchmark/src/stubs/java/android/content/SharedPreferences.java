@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.content;
+
+import java.util.Map;
+
+/**
+ * Stand-in for the framework interface.
+ */
+public interface SharedPreferences {
+	public Map<String, ?> getAll();
+
+	public String getString(String key, String defValue);
+
+	public int getInt(String key, int defValue);
+
+	public long getLong(String key, long defValue);
+
+	public boolean getBoolean(String key, boolean defValue);
+
+	public boolean contains(String key);
+
+	public Editor edit();
+
+	public interface Editor {
+		public Editor putString(String key, String value);
+
+		public Editor putInt(String key, int value);
+
+		public Editor putLong(String key, long value);
+
+		public Editor putBoolean(String key, boolean value);
+
+		public Editor remove(String key);
+
+		public Editor clear();
+
+		public boolean commit();
+
+		public void apply();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.os;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Stand-in for the framework class.
+ * 
+ * A Serializable value is marshaled when it is stored and unmarshaled every
+ * time it is read, and a byte array is copied when it is stored, which is
+ * what happens to them on their way through the system server in a real
+ * Intent.
+ */
+public class Bundle {
+	private HashMap<String, Object> map;
+
+	public Bundle() {
+		map = new HashMap<String, Object>();
+	}
+
+	public Bundle(Bundle b) {
+		map = new HashMap<String, Object>(b.map);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public Set<String> keySet() {
+		return map.keySet();
+	}
+
+	public boolean containsKey(String key) {
+		return map.containsKey(key);
+	}
+
+	public Object get(String key) {
+		Object v = map.get(key);
+		if (v instanceof Marshaled) {
+			return ((Marshaled) v).unmarshal();
+		}
+		return v;
+	}
+
+	public void putString(String key, String value) {
+		map.put(key, value);
+	}
+
+	public void putInt(String key, int value) {
+		map.put(key, value);
+	}
+
+	public void putLong(String key, long value) {
+		map.put(key, value);
+	}
+
+	public void putBoolean(String key, boolean value) {
+		map.put(key, value);
+	}
+
+	public void putByteArray(String key, byte[] value) {
+		map.put(key, value == null ? null : value.clone());
+	}
+
+	public void putStringArray(String key, String[] value) {
+		map.put(key, value);
+	}
+
+	public void putBundle(String key, Bundle value) {
+		map.put(key, value);
+	}
+
+	public void putSerializable(String key, Serializable value) {
+		map.put(key, value == null ? null : new Marshaled(value));
+	}
+
+	public String getString(String key) {
+		Object v = map.get(key);
+		return v instanceof String ? (String) v : null;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		Object v = map.get(key);
+		return v instanceof Integer ? (Integer) v : defaultValue;
+	}
+
+	public long getLong(String key, long defaultValue) {
+		Object v = map.get(key);
+		return v instanceof Long ? (Long) v : defaultValue;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		Object v = map.get(key);
+		return v instanceof Boolean ? (Boolean) v : defaultValue;
+	}
+
+	public byte[] getByteArray(String key) {
+		Object v = map.get(key);
+		return v instanceof byte[] ? (byte[]) v : null;
+	}
+
+	public String[] getStringArray(String key) {
+		Object v = map.get(key);
+		return v instanceof String[] ? (String[]) v : null;
+	}
+
+	public Bundle getBundle(String key) {
+		Object v = map.get(key);
+		return v instanceof Bundle ? (Bundle) v : null;
+	}
+
+	public Serializable getSerializable(String key) {
+		Object v = map.get(key);
+		return v instanceof Marshaled ? ((Marshaled) v).unmarshal() : null;
+	}
+
+	private static class Marshaled {
+		private byte[] data;
+
+		Marshaled(Serializable value) {
+			try {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(buf);
+				out.writeObject(value);
+				out.close();
+				data = buf.toByteArray();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		Serializable unmarshal() {
+			try {
+				ObjectInputStream in = new ObjectInputStream(
+						new ByteArrayInputStream(data));
+				return (Serializable) in.readObject();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.os;
+
+/**
+ * Stand-in for the framework class. Wake locks do nothing.
+ */
+public class PowerManager {
+	public static final int PARTIAL_WAKE_LOCK = 1;
+
+	public WakeLock newWakeLock(int levelAndFlags, String tag) {
+		return new WakeLock();
+	}
+
+	public static class WakeLock {
+		public void setReferenceCounted(boolean value) {
+		}
+
+		public void acquire(long timeout) {
+		}
+
+		public void release() {
+		}
+	}
+}
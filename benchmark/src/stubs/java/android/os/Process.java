@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.os;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Stand-in for the framework class. The uid is the user running the JVM,
+ * from /proc/self/status; -1 if it cannot be read.
+ */
+public class Process {
+	public static int myUid() {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader("/proc/self/status"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("Uid:")) {
+					return Integer.parseInt(line.substring(4).trim()
+							.split("\\s+")[0]);
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return -1;
+	}
+}
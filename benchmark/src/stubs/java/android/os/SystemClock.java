@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package android.os;
+
+/**
+ * Stand-in for the framework class. There is no sleep to count, so the
+ * elapsed real time is the monotonic time, unless a simulation has set it.
+ */
+public final class SystemClock {
+	// The simulated time; negative to use the real one.
+	private static volatile long simulated = -1;
+
+	public static long elapsedRealtime() {
+		long t = simulated;
+		return t >= 0 ? t : System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Not in the framework: stop the clock at the time, for simulations.
+	 * Negative to let it run again.
+	 */
+	public static void setSimulated(long now) {
+		simulated = now;
+	}
+}
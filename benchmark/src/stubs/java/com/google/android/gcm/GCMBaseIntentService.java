@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.gcm;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * Stand-in for the GCM helper library class.
+ */
+public abstract class GCMBaseIntentService extends Service {
+	protected GCMBaseIntentService() {
+	}
+
+	protected String[] getSenderIds(Context context) {
+		return null;
+	}
+
+	protected abstract void onMessage(Context context, Intent intent);
+
+	protected void onDeletedMessages(Context context, int total) {
+	}
+
+	protected abstract void onError(Context context, String errorId);
+
+	protected boolean onRecoverableError(Context context, String errorId) {
+		return true;
+	}
+
+	protected abstract void onRegistered(Context context, String registrationId);
+
+	protected abstract void onUnregistered(Context context,
+			String registrationId);
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the uniqush-client-java class: a header map and a body.
+ */
+public class Message implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Map<String, String> header;
+	private byte[] body;
+
+	public Message() {
+		this.header = null;
+		this.body = null;
+	}
+
+	public Message(Map<String, String> header, byte[] body) {
+		this.header = header;
+		this.body = body;
+	}
+
+	public void put(String key, String value) {
+		if (header == null) {
+			header = new HashMap<String, String>();
+		}
+		header.put(key, value);
+	}
+
+	public Map<String, String> getHeader() {
+		return header;
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+	public void setBody(byte[] body) {
+		this.body = body;
+	}
+
+	public boolean isEmpty() {
+		return (header == null || header.isEmpty())
+				&& (body == null || body.length == 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Message)) {
+			return false;
+		}
+		Message m = (Message) obj;
+		Map<String, String> h1 = header == null ? new HashMap<String, String>()
+				: header;
+		Map<String, String> h2 = m.header == null ? new HashMap<String, String>()
+				: m.header;
+		byte[] b1 = body == null ? new byte[0] : body;
+		byte[] b2 = m.body == null ? new byte[0] : m.body;
+		return h1.equals(h2) && Arrays.equals(b1, b2);
+	}
+
+	@Override
+	public int hashCode() {
+		return (header == null ? 0 : header.hashCode()) * 31
+				+ (body == null ? 0 : Arrays.hashCode(body));
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Stand-in for the uniqush-client-java class. There is no server: every call
+ * succeeds at once, and run() blocks until stop() as a reader would.
+ */
+public class MessageCenter implements Runnable {
+	private CredentialProvider credentialProvider;
+	private CountDownLatch stopped;
+
+	public MessageCenter(CredentialProvider cp) {
+		this.credentialProvider = cp;
+		this.stopped = new CountDownLatch(1);
+	}
+
+	public void connect(String address, int port, String service,
+			String username, MessageHandler msgHandler) throws IOException,
+			LoginException, InterruptedException {
+		if (credentialProvider.getPassword(service, username) == null) {
+			throw new LoginException("no password");
+		}
+	}
+
+	public void config(int digestThreshold, int compressThreshold,
+			List<String> digestFields) throws IOException, InterruptedException {
+	}
+
+	public void setVisibility(boolean visible) throws IOException,
+			InterruptedException {
+	}
+
+	public void subscribe(Map<String, String> params) throws IOException,
+			InterruptedException {
+	}
+
+	public void unsubscribe(Map<String, String> params) throws IOException,
+			InterruptedException {
+	}
+
+	public void sendMessageToServer(Message msg) throws IOException,
+			InterruptedException {
+	}
+
+	public void sendMessageToUser(String service, String username,
+			Message msg, int ttl) throws IOException, InterruptedException {
+	}
+
+	public void requestMessage(String id) throws IOException,
+			InterruptedException {
+	}
+
+	public void requestAllSince(Date since) throws IOException,
+			InterruptedException {
+	}
+
+	public void stop() {
+		stopped.countDown();
+	}
+
+	@Override
+	public void run() {
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
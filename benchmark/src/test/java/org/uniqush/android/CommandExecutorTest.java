@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.uniqush.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CommandExecutorTest {
+	private static final long TIMEOUT = 10;
+
+	private static Runnable await(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	private static void awaitIdle(CommandExecutor executor)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+		while (executor.queueDepth() > 0) {
+			if (System.nanoTime() > deadline) {
+				fail("still " + executor.queueDepth() + " commands pending");
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testRunsEachLaneInOrder() throws InterruptedException {
+		int lanes = 4;
+		final int perLane = 2000;
+		CommandExecutor executor = new CommandExecutor(3, lanes * perLane);
+		final CountDownLatch idle = new CountDownLatch(1);
+		executor.setIdleListener(new Runnable() {
+			@Override
+			public void run() {
+				idle.countDown();
+			}
+		});
+		List<List<Integer>> ran = new ArrayList<List<Integer>>();
+		for (int l = 0; l < lanes; l++) {
+			ran.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		// Interleaved, so that every lane is queued while the others run.
+		for (int i = 0; i < perLane; i++) {
+			for (int l = 0; l < lanes; l++) {
+				final List<Integer> out = ran.get(l);
+				final int n = i;
+				executor.execute("lane" + l, new Runnable() {
+					@Override
+					public void run() {
+						out.add(n);
+					}
+				});
+			}
+		}
+		assertTrue(idle.await(TIMEOUT, TimeUnit.SECONDS));
+		awaitIdle(executor);
+		for (List<Integer> out : ran) {
+			assertEquals(perLane, out.size());
+			for (int i = 0; i < perLane; i++) {
+				assertEquals(i, out.get(i).intValue());
+			}
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void testRejectionLeavesQueueAsItWas() throws InterruptedException {
+		CommandExecutor executor = new CommandExecutor(1, 2);
+		CountDownLatch release = new CountDownLatch(1);
+		final List<String> ran = Collections
+				.synchronizedList(new ArrayList<String>());
+		executor.execute("a", await(release));
+		executor.execute("a", new Runnable() {
+			@Override
+			public void run() {
+				ran.add("second");
+			}
+		});
+		try {
+			executor.execute("a", new Runnable() {
+				@Override
+				public void run() {
+					ran.add("rejected");
+				}
+			});
+			fail("accepted beyond capacity");
+		} catch (RejectedExecutionException e) {
+		}
+		assertEquals(2, executor.queueDepth());
+
+		release.countDown();
+		awaitIdle(executor);
+		assertEquals(Collections.singletonList("second"), ran);
+
+		// The lane works as before.
+		executor.execute("a", new Runnable() {
+			@Override
+			public void run() {
+				ran.add("third");
+			}
+		});
+		awaitIdle(executor);
+		assertEquals(2, ran.size());
+		assertEquals("third", ran.get(1));
+		executor.shutdown();
+	}
+
+	@Test
+	public void testShutdownDropsRestOfLanes() throws InterruptedException {
+		CommandExecutor executor = new CommandExecutor(1, 10);
+		CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger ran = new AtomicInteger();
+		Runnable count = new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		};
+		executor.execute("a", await(release));
+		executor.execute("a", count);
+		executor.execute("a", count);
+		executor.shutdown();
+		try {
+			executor.execute("b", count);
+			fail("accepted after shutdown");
+		} catch (RejectedExecutionException e) {
+		}
+		assertEquals(3, executor.queueDepth());
+
+		release.countDown();
+		// The lane cannot go back to the pool, so what is left of it is
+		// dropped, and no longer counted as pending.
+		awaitIdle(executor);
+		assertEquals(0, ran.get());
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.uniqush.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DigestParserTest {
+	private final DigestParser parser = new DigestParser();
+
+	@Test
+	public void testParsesFromUser() {
+		assertTrue(parser.parse("m1,1536,svc,me,othersvc,friend"));
+		assertEquals("m1", parser.getMsgId());
+		assertEquals(1536, parser.getSize());
+		assertEquals("svc", parser.getService());
+		assertEquals("me", parser.getUser());
+		assertEquals("othersvc", parser.getSenderService());
+		assertEquals("friend", parser.getSender());
+	}
+
+	@Test
+	public void testParsesFromServer() {
+		// Nothing is left over from the descriptor before.
+		assertTrue(parser.parse("m1,1,svc,me,othersvc,friend"));
+		assertTrue(parser.parse("m2,0,svc,me"));
+		assertEquals("m2", parser.getMsgId());
+		assertEquals(0, parser.getSize());
+		assertEquals("me", parser.getUser());
+		assertNull(parser.getSenderService());
+		assertNull(parser.getSender());
+
+		assertTrue(parser.parse("m3,0,svc,me,,"));
+		assertNull(parser.getSenderService());
+		assertNull(parser.getSender());
+	}
+
+	@Test
+	public void testRejectsShortDescriptors() {
+		assertFalse(parser.parse(null));
+		assertFalse(parser.parse(""));
+		assertFalse(parser.parse("m1"));
+		assertFalse(parser.parse("m1,10"));
+		assertFalse(parser.parse("m1,10,svc"));
+		assertFalse(parser.parse("m1,10,svc,"));
+	}
+
+	@Test
+	public void testRejectsMalformedDescriptors() {
+		assertFalse(parser.parse(",10,svc,me"));
+		assertFalse(parser.parse("m1,10,,me"));
+		assertFalse(parser.parse("m1,,svc,me"));
+		assertFalse(parser.parse("m1,-1,svc,me"));
+		assertFalse(parser.parse("m1,1x,svc,me"));
+		assertFalse(parser.parse("m1,1234567890,svc,me"));
+		// Half a sender.
+		assertFalse(parser.parse("m1,10,svc,me,othersvc"));
+		assertFalse(parser.parse("m1,10,svc,me,othersvc,"));
+	}
+
+	@Test
+	public void testPackRoundTrip() {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("title", "a=b&c");
+		params.put("100%", "");
+		params.put("plain", "text");
+		Map<String, String> out = new HashMap<String, String>();
+		DigestParser.unpack(DigestParser.pack(params), out);
+		assertEquals(params, out);
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.uniqush.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.uniqush.client.Message;
+
+public class OutboxTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ScheduledExecutorService timer;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		timer = Executors.newSingleThreadScheduledExecutor();
+		file = new File(folder.getRoot(), "outbox");
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+	}
+
+	private Outbox open() {
+		Outbox o = new Outbox(file, timer, 100, 1 << 20);
+		o.load();
+		return o;
+	}
+
+	private static OutboundMessage message(int callId, String body) {
+		Message m = new Message();
+		m.put("k", body);
+		m.setBody(body.getBytes());
+		if (callId % 2 == 0) {
+			return new OutboundMessage(callId, m);
+		}
+		return new OutboundMessage(callId, "service", "user" + callId, m, 60);
+	}
+
+	private static void assertSame(OutboundMessage expected,
+			OutboundMessage actual) {
+		assertEquals(expected.isToServer(), actual.isToServer());
+		assertEquals(expected.getService(), actual.getService());
+		assertEquals(expected.getUserName(), actual.getUserName());
+		assertEquals(expected.getTtl(), actual.getTtl());
+		assertEquals(expected.getMessage(), actual.getMessage());
+	}
+
+	@Test
+	public void testReplaysInOrderWithoutCallIds() {
+		Outbox o = open();
+		OutboundMessage[] sent = new OutboundMessage[5];
+		for (int i = 0; i < sent.length; i++) {
+			sent[i] = message(i + 1, "message " + i);
+			assertTrue(o.offer(sent[i]));
+		}
+		o.close();
+
+		List<OutboundMessage> loaded = open().peek(10);
+		assertEquals(sent.length, loaded.size());
+		for (int i = 0; i < sent.length; i++) {
+			assertSame(sent[i], loaded.get(i));
+			assertEquals(-1, loaded.get(i).getCallId());
+		}
+	}
+
+	@Test
+	public void testDropsTornTail() throws IOException {
+		Outbox o = open();
+		for (int i = 0; i < 3; i++) {
+			o.offer(message(i, "message " + i));
+		}
+		o.close();
+		long intact = file.length();
+
+		// A MESSAGE record cut off by a crash: 100 bytes announced, 4 there.
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] { 3, 0, 0, 0, 0, 0, 0, 0, 9, 0, 0, 0, 100, 1,
+				2, 3, 4 });
+		out.close();
+
+		o = open();
+		assertEquals(3, o.size());
+		assertEquals(intact, file.length());
+
+		// The journal goes on from the last whole record.
+		o.offer(message(3, "message 3"));
+		o.close();
+		List<OutboundMessage> loaded = open().peek(10);
+		assertEquals(4, loaded.size());
+		assertSame(message(3, "message 3"), loaded.get(3));
+	}
+
+	@Test
+	public void testCompactsAckedMessages() {
+		Outbox o = open();
+		for (int i = 0; i < 5; i++) {
+			o.offer(message(i, "message " + i));
+		}
+		o.remove(3);
+		o.close();
+		long withAcks = file.length();
+
+		o = open();
+		List<OutboundMessage> loaded = o.peek(10);
+		assertEquals(2, loaded.size());
+		assertSame(message(3, "message 3"), loaded.get(0));
+		assertSame(message(4, "message 4"), loaded.get(1));
+		assertTrue(file.length() < withAcks);
+
+		o.remove(2);
+		o.close();
+		assertTrue(o.isEmpty());
+		assertFalse(file.exists());
+		assertTrue(open().isEmpty());
+	}
+
+	@Test
+	public void testNewMessagesFollowLoadedOnes() {
+		Outbox o = open();
+		o.offer(message(0, "old"));
+		o.remove(1);
+		o.offer(message(2, "kept"));
+		o.close();
+
+		o = open();
+		o.offer(message(4, "new"));
+		o.remove(1);
+		o.close();
+
+		// The ACK for "kept" must not cover "new".
+		List<OutboundMessage> loaded = open().peek(10);
+		assertEquals(1, loaded.size());
+		assertSame(message(4, "new"), loaded.get(0));
+	}
+
+	@Test
+	public void testWaitsForLoad() throws InterruptedException {
+		Outbox o = new Outbox(file, timer, 100, 1 << 20);
+		o.load();
+		o.offer(message(0, "left over"));
+		o.close();
+
+		final Outbox reopened = new Outbox(file, timer, 100, 1 << 20);
+		Thread loader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				reopened.load();
+			}
+		};
+		loader.start();
+		reopened.offer(message(2, "after"));
+		List<OutboundMessage> all = reopened.peek(10);
+		loader.join();
+		assertEquals(2, all.size());
+		assertSame(message(0, "left over"), all.get(0));
+		assertSame(message(2, "after"), all.get(1));
+	}
+}
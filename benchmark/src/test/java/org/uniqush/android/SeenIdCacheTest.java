@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.uniqush.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SeenIdCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDropsDuplicates() {
+		SeenIdCache seen = new SeenIdCache(16);
+		assertTrue(seen.onMessage("a"));
+		assertFalse(seen.onMessage("a"));
+		// The message has been delivered; its digest is of no use.
+		assertFalse(seen.onDigest("a"));
+
+		assertTrue(seen.onDigest("b"));
+		assertFalse(seen.onDigest("b"));
+		// A digest does not stand in for the message.
+		assertTrue(seen.onMessage("b"));
+
+		assertTrue(seen.onMessage(null));
+		assertTrue(seen.onMessage(null));
+	}
+
+	@Test
+	public void testForgetsOldestWhenFull() {
+		SeenIdCache seen = new SeenIdCache(3);
+		for (String id : new String[] { "a", "b", "c", "d" }) {
+			assertTrue(seen.onMessage(id));
+		}
+		assertFalse(seen.isDelivered("a"));
+		assertTrue(seen.isDelivered("b"));
+		assertTrue(seen.isDelivered("c"));
+		assertTrue(seen.isDelivered("d"));
+		assertTrue(seen.onMessage("a"));
+		assertFalse(seen.isDelivered("b"));
+	}
+
+	/**
+	 * @return ids whose fingerprints all fall into the last slots of a table
+	 *         of the given size, or its first one, so that they collide and
+	 *         their probes wrap around the end of the table.
+	 */
+	private static List<String> collidingIds(int tableSize, int n) {
+		int mask = tableSize - 1;
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; ids.size() < n; i++) {
+			String id = "id" + i;
+			long fp = SeenIdCache.fingerprint(id);
+			int slot = (int) (fp ^ (fp >>> 32)) & mask;
+			if (slot >= tableSize - 2 || slot == 0) {
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	@Test
+	public void testEvictionKeepsCollidingIdsReachable() {
+		// Capacity 4 makes a table of 8 slots.
+		int capacity = 4;
+		List<String> ids = collidingIds(8, 40);
+		Random random = new Random(1);
+		SeenIdCache seen = new SeenIdCache(capacity);
+		ArrayDeque<String> model = new ArrayDeque<String>();
+		for (int round = 0; round < 2000; round++) {
+			String id = ids.get(random.nextInt(ids.size()));
+			boolean fresh = !model.contains(id);
+			assertEquals(id, fresh, seen.onMessage(id));
+			if (fresh) {
+				model.add(id);
+				if (model.size() > capacity) {
+					model.poll();
+				}
+			}
+			for (String other : ids) {
+				assertEquals(other, model.contains(other),
+						seen.isDelivered(other));
+			}
+		}
+	}
+
+	@Test
+	public void testSavesAndLoadsInOrder() {
+		File file = new File(folder.getRoot(), "seen");
+		SeenIdCache seen = new SeenIdCache(3);
+		seen.onMessage("a");
+		seen.onMessage("b");
+		seen.onMessage("c");
+		seen.onDigest("x");
+		seen.save(file);
+
+		SeenIdCache loaded = new SeenIdCache(3);
+		loaded.load(file);
+		assertTrue(loaded.isDelivered("a"));
+		assertFalse(loaded.onDigest("x"));
+		// "a" is still the oldest.
+		loaded.onMessage("d");
+		assertFalse(loaded.isDelivered("a"));
+		assertTrue(loaded.isDelivered("b"));
+	}
+
+	@Test
+	public void testFingerprintIsNeverZero() {
+		HashSet<Long> fps = new HashSet<Long>();
+		for (int i = 0; i < 10000; i++) {
+			long fp = SeenIdCache.fingerprint(Integer.toString(i));
+			assertTrue(fp != 0);
+			fps.add(fp);
+		}
+		assertEquals(10000, fps.size());
+	}
+}
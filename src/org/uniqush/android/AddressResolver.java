@@ -0,0 +1,306 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Picks the address to connect to for a host name.
+ *
+ * Resolved addresses are cached for a while. Once a connection to one of them
+ * has worked, it is used straight away the next time. Otherwise, TCP
+ * connections are raced to all of them: one is started, and the next one
+ * whenever the previous has failed or has not succeeded within a short
+ * delay, alternating between IPv6 and IPv4. The first to connect wins and is
+ * remembered; the others are abandoned. The sockets of the race are closed
+ * again: the connection itself is made to the winning address afterwards.
+ */
+class AddressResolver {
+	private static final String TAG = "UniqushAddressResolver";
+
+	static final long TTL = 5 * 60 * 1000;
+	// Failed lookups are not retried for this long.
+	static final long NEGATIVE_TTL = 10 * 1000;
+	static final long STAGGER = 250;
+	static final int CONNECT_TIMEOUT = 10 * 1000;
+
+	private static class Entry {
+		InetAddress[] addresses;
+		UnknownHostException error;
+		long expires;
+		// The address which worked last time, or null.
+		InetAddress preferred;
+	}
+
+	private final HashMap<String, Entry> cache;
+	private final ExecutorService attempts;
+
+	public AddressResolver() {
+		this.cache = new HashMap<String, Entry>();
+		this.attempts = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "UniqushConnect-"
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * @return the addresses of the host, from the cache if they are fresh.
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		Entry e;
+		synchronized (this) {
+			e = cache.get(host);
+			if (e != null && e.expires > now()) {
+				Metrics.DNS_CACHE_HITS.inc();
+				if (e.error != null) {
+					throw e.error;
+				}
+				return e.addresses;
+			}
+		}
+		InetAddress[] addresses = null;
+		UnknownHostException error = null;
+		long start = Metrics.start();
+		try {
+			addresses = InetAddress.getAllByName(host);
+		} catch (UnknownHostException ex) {
+			error = ex;
+		}
+		Metrics.DNS_LOOKUP.since(start);
+		synchronized (this) {
+			Entry n = new Entry();
+			n.addresses = addresses;
+			n.error = error;
+			n.expires = now() + (error == null ? TTL : NEGATIVE_TTL);
+			// Keep the preferred address if the host still has it.
+			if (e != null && e.preferred != null && addresses != null) {
+				for (InetAddress a : addresses) {
+					if (a.equals(e.preferred)) {
+						n.preferred = a;
+						break;
+					}
+				}
+			}
+			cache.put(host, n);
+		}
+		if (error != null) {
+			throw error;
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return the address (as a literal) to connect to.
+	 */
+	public String pick(String host, int port) throws IOException,
+			InterruptedException {
+		InetAddress[] addresses = resolve(host);
+		synchronized (this) {
+			Entry e = cache.get(host);
+			if (e != null && e.preferred != null) {
+				return e.preferred.getHostAddress();
+			}
+		}
+		if (addresses.length == 1) {
+			return addresses[0].getHostAddress();
+		}
+		InetAddress winner = race(interleave(addresses), port);
+		onConnected(host, winner.getHostAddress());
+		return winner.getHostAddress();
+	}
+
+	/**
+	 * The connection to the address worked: use it first from now on.
+	 */
+	public synchronized void onConnected(String host, String address) {
+		Entry e = cache.get(host);
+		if (e == null || e.addresses == null) {
+			return;
+		}
+		for (InetAddress a : e.addresses) {
+			if (a.getHostAddress().equals(address)) {
+				e.preferred = a;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The connection to the address failed: race them all the next time.
+	 */
+	public synchronized void onFailed(String host, String address) {
+		Entry e = cache.get(host);
+		if (e != null && e.preferred != null
+				&& e.preferred.getHostAddress().equals(address)) {
+			e.preferred = null;
+		}
+	}
+
+	/**
+	 * IPv6 and IPv4 addresses taking turns, each family in the resolver's
+	 * order.
+	 */
+	private static List<InetAddress> interleave(InetAddress[] addresses) {
+		ArrayList<InetAddress> v6 = new ArrayList<InetAddress>();
+		ArrayList<InetAddress> v4 = new ArrayList<InetAddress>();
+		for (InetAddress a : addresses) {
+			if (a instanceof Inet6Address) {
+				v6.add(a);
+			} else {
+				v4.add(a);
+			}
+		}
+		boolean v6First = addresses[0] instanceof Inet6Address;
+		ArrayList<InetAddress> ret = new ArrayList<InetAddress>(
+				addresses.length);
+		for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+			List<InetAddress> first = v6First ? v6 : v4;
+			List<InetAddress> second = v6First ? v4 : v6;
+			if (i < first.size()) {
+				ret.add(first.get(i));
+			}
+			if (i < second.size()) {
+				ret.add(second.get(i));
+			}
+		}
+		return ret;
+	}
+
+	private static class Attempt implements Callable<InetAddress> {
+		final InetAddress address;
+		final int port;
+		final Socket socket;
+
+		Attempt(InetAddress address, int port) {
+			this.address = address;
+			this.port = port;
+			this.socket = new Socket();
+		}
+
+		@Override
+		public InetAddress call() throws IOException {
+			try {
+				socket.connect(new InetSocketAddress(address, port),
+						CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				throw new IOException(address.getHostAddress() + ": "
+						+ e.getMessage());
+			} finally {
+				close();
+			}
+			return address;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private InetAddress race(List<InetAddress> addresses, int port)
+			throws IOException, InterruptedException {
+		long start = Metrics.start();
+		ExecutorCompletionService<InetAddress> done = new ExecutorCompletionService<InetAddress>(
+				attempts);
+		ArrayList<Attempt> started = new ArrayList<Attempt>(addresses.size());
+		ArrayList<Future<InetAddress>> futures = new ArrayList<Future<InetAddress>>(
+				addresses.size());
+		int running = 0;
+		IOException lastError = null;
+		try {
+			int next = 0;
+			while (next < addresses.size() || running > 0) {
+				if (next < addresses.size()) {
+					Attempt a = new Attempt(addresses.get(next++), port);
+					try {
+						futures.add(done.submit(a));
+					} catch (RejectedExecutionException e) {
+						throw new IOException("resolver closed");
+					}
+					started.add(a);
+					running++;
+				}
+				// Give the ones running a head start before the next one,
+				// unless there is none left to start.
+				Future<InetAddress> f = next < addresses.size() ? done.poll(
+						STAGGER, TimeUnit.MILLISECONDS) : done.take();
+				if (f == null) {
+					continue;
+				}
+				running--;
+				try {
+					InetAddress winner = f.get();
+					Metrics.CONNECT_RACE.since(start);
+					return winner;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						lastError = (IOException) e.getCause();
+					} else {
+						lastError = new IOException(e.getCause().toString());
+					}
+					Log.w(TAG, "cannot connect to " + lastError.getMessage());
+				}
+			}
+		} finally {
+			for (Attempt a : started) {
+				a.close();
+			}
+			for (Future<InetAddress> f : futures) {
+				f.cancel(true);
+			}
+		}
+		throw lastError != null ? lastError : new IOException("no address");
+	}
+
+	public void close() {
+		attempts.shutdownNow();
+	}
+}
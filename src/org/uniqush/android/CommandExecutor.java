@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the service's commands on a fixed number of worker threads.
+ *
+ * Commands are grouped into lanes. Commands in the same lane run one after
+ * another in the order they were submitted; commands in different lanes may run
+ * in parallel. The total number of pending commands is bounded, and a command
+ * submitted beyond that bound is rejected instead of being queued.
+ */
+class CommandExecutor {
+	private ThreadPoolExecutor pool;
+	private HashMap<String, Lane> lanes;
+	private AtomicInteger pending;
+	private int capacity;
+	private volatile Runnable idleListener;
+
+	public CommandExecutor(int workers, int capacity) {
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers should be positive");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity should be positive");
+		}
+		this.capacity = capacity;
+		this.pending = new AtomicInteger(0);
+		this.lanes = new HashMap<String, Lane>();
+		this.pool = new ThreadPoolExecutor(workers, workers, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new WorkerFactory());
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queue the command in the given lane.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if there are already too many pending commands, or the
+	 *             executor has been shut down.
+	 */
+	public void execute(String lane, Runnable command) {
+		if (pool.isShutdown()) {
+			throw new RejectedExecutionException("executor is shut down");
+		}
+		int depth = pending.incrementAndGet();
+		if (depth > capacity) {
+			pending.decrementAndGet();
+			Metrics.COMMANDS_REJECTED.inc();
+			throw new RejectedExecutionException("too many pending commands: "
+					+ capacity);
+		}
+		Metrics.QUEUE_DEPTH.record(depth);
+		synchronized (lanes) {
+			Lane l = lanes.get(lane);
+			if (l == null) {
+				l = new Lane(lane);
+				lanes.put(lane, l);
+			}
+			l.commands.add(command);
+			if (!l.active) {
+				l.active = true;
+				try {
+					pool.execute(l);
+				} catch (RejectedExecutionException e) {
+					// Shut down meanwhile. Leave the lane as it was.
+					l.commands.removeLast();
+					l.active = false;
+					if (l.commands.isEmpty()) {
+						lanes.remove(lane);
+					}
+					pending.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the listener, on the worker thread, whenever the last pending
+	 * command has finished. It should be quick.
+	 */
+	public void setIdleListener(Runnable listener) {
+		this.idleListener = listener;
+	}
+
+	/**
+	 * @return number of commands which are queued or running.
+	 */
+	public int queueDepth() {
+		return pending.get();
+	}
+
+	public boolean isShutdown() {
+		return pool.isShutdown();
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private class Lane implements Runnable {
+		private String name;
+		private ArrayDeque<Runnable> commands;
+		private boolean active;
+
+		Lane(String name) {
+			this.name = name;
+			this.commands = new ArrayDeque<Runnable>();
+			this.active = false;
+		}
+
+		@Override
+		public void run() {
+			Runnable command;
+			synchronized (lanes) {
+				command = commands.poll();
+			}
+			try {
+				if (command != null) {
+					command.run();
+				}
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					Runnable l = idleListener;
+					if (l != null) {
+						l.run();
+					}
+				}
+				synchronized (lanes) {
+					if (commands.isEmpty()) {
+						active = false;
+						lanes.remove(name);
+					} else {
+						// Go back to the end of the pool's queue so that a busy
+						// lane does not starve the others.
+						try {
+							pool.execute(this);
+						} catch (RejectedExecutionException e) {
+							// Shut down: the rest of the lane never runs.
+							pending.addAndGet(-commands.size());
+							commands.clear();
+							active = false;
+							lanes.remove(name);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static class WorkerFactory implements ThreadFactory {
+		private AtomicInteger count = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "UniqushCommand-"
+					+ count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+import org.uniqush.client.Message;
+
+/**
+ * Compresses the bodies of small messages with preset dictionaries, which
+ * the apps on both ends register under the same version number.
+ *
+ * A compressed message carries the "uq.z" header, whose value is the version
+ * of the dictionary, and its body is the zlib stream of the original body.
+ * The stream names the dictionary by its checksum, so a mismatch is caught
+ * rather than delivering garbage. The headers are left as they are: the
+ * server reads them, e.g. for the parameters of a digest.
+ *
+ * Only received messages are decompressed. Nothing is compressed on sending,
+ * as the receiving end cannot tell whether it has the dictionary: the server
+ * application never has, and other users' clients may not. compress() still
+ * makes the format, with the dictionary of the highest version, e.g. to
+ * measure it.
+ */
+final class CompressionDictionary {
+	private static final String TAG = "UniqushCompressionDictionary";
+
+	public static final String HEADER = "uq.z";
+	// Too little to gain below; larger ones are left to the connection's
+	// own compression.
+	static final int MIN_SIZE = 32;
+	static final int MAX_SIZE = 4096;
+
+	private static final ConcurrentHashMap<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+	private static volatile int current = 0;
+
+	private static final ThreadLocal<Coder> coders = new ThreadLocal<Coder>() {
+		@Override
+		protected Coder initialValue() {
+			return new Coder();
+		}
+	};
+
+	private CompressionDictionary() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if version is not positive or the dictionary is empty.
+	 */
+	static synchronized void add(int version, byte[] dictionary) {
+		if (version <= 0) {
+			throw new IllegalArgumentException("version should be positive");
+		}
+		if (dictionary == null || dictionary.length == 0) {
+			throw new IllegalArgumentException("empty dictionary");
+		}
+		dictionaries.put(version, dictionary.clone());
+		if (version > current) {
+			current = version;
+		}
+	}
+
+	static synchronized void clear() {
+		dictionaries.clear();
+		current = 0;
+	}
+
+	/**
+	 * @return the message with its body compressed, or msg itself if there is
+	 *         no dictionary, or it would not make the message smaller.
+	 */
+	static Message compress(Message msg) {
+		int version = current;
+		if (version == 0 || msg == null) {
+			return msg;
+		}
+		byte[] body = msg.getBody();
+		if (body == null || body.length < MIN_SIZE || body.length > MAX_SIZE) {
+			return msg;
+		}
+		Map<String, String> header = msg.getHeader();
+		if (header != null && header.containsKey(HEADER)) {
+			return msg;
+		}
+		String v = Integer.toString(version);
+		byte[] z = coders.get().deflate(dictionaries.get(version), body);
+		if (z.length + HEADER.length() + v.length() >= body.length) {
+			Metrics.DICTIONARY_MISSES.inc();
+			return msg;
+		}
+		HashMap<String, String> h = header == null ? new HashMap<String, String>(
+				2) : new HashMap<String, String>(header);
+		h.put(HEADER, v);
+		Metrics.DICTIONARY_BYTES_SAVED.record(body.length - z.length);
+		return new Message(h, z);
+	}
+
+	/**
+	 * @return the message with its body decompressed, or msg itself if it was
+	 *         not compressed, or cannot be decompressed (e.g. the dictionary
+	 *         is unknown), in which case the app gets it as it is.
+	 */
+	static Message decompress(Message msg) {
+		if (msg == null) {
+			return msg;
+		}
+		Map<String, String> header = msg.getHeader();
+		String v = header == null ? null : header.get(HEADER);
+		if (v == null || msg.getBody() == null) {
+			return msg;
+		}
+		byte[] dict = null;
+		try {
+			dict = dictionaries.get(Integer.valueOf(v));
+		} catch (NumberFormatException e) {
+		}
+		if (dict == null) {
+			Log.w(TAG, "unknown dictionary: " + v);
+			return msg;
+		}
+		byte[] body;
+		try {
+			body = coders.get().inflate(dict, msg.getBody());
+		} catch (DataFormatException e) {
+			Log.w(TAG, "cannot decompress with dictionary " + v + ": " + e);
+			return msg;
+		} catch (IllegalArgumentException e) {
+			// The dictionary does not match the one it was compressed with.
+			Log.w(TAG, "wrong dictionary " + v);
+			return msg;
+		}
+		HashMap<String, String> h = new HashMap<String, String>(header);
+		h.remove(HEADER);
+		return new Message(h, body);
+	}
+
+	/**
+	 * A thread's Deflater and Inflater, reused from one message to the next.
+	 */
+	private static class Coder {
+		private final Deflater deflater = new Deflater();
+		private final Inflater inflater = new Inflater();
+		private byte[] buf = new byte[MAX_SIZE + 64];
+
+		byte[] deflate(byte[] dict, byte[] data) {
+			deflater.reset();
+			deflater.setDictionary(dict);
+			deflater.setInput(data);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished()) {
+				if (n == buf.length) {
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				}
+				n += deflater.deflate(buf, n, buf.length - n);
+			}
+			return Arrays.copyOf(buf, n);
+		}
+
+		byte[] inflate(byte[] dict, byte[] data) throws DataFormatException {
+			inflater.reset();
+			inflater.setInput(data);
+			byte[] out = new byte[Math.max(data.length * 4, 64)];
+			int n = 0;
+			while (!inflater.finished()) {
+				if (n == out.length) {
+					if (out.length >= MAX_SIZE * 2) {
+						throw new DataFormatException("too large");
+					}
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				int r = inflater.inflate(out, n, out.length - n);
+				if (r == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(dict);
+					} else if (inflater.needsInput()) {
+						throw new DataFormatException("truncated");
+					}
+				}
+				n += r;
+			}
+			return n == out.length ? out : Arrays.copyOf(out, n);
+		}
+	}
+}
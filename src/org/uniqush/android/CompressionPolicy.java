@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Picks the compress threshold asked of the server from how well the messages
+ * it sends actually compress.
+ *
+ * Every few messages, the body of one is deflated here, and the ratio it
+ * achieves and the time it takes are averaged per size bucket (one per power
+ * of two from 256 bytes on). Compression pays off in a bucket if it shrinks
+ * the messages by a tenth at least, and the time it saves on a slow link is
+ * more than the time it takes. The threshold is the lower bound of the
+ * smallest bucket from which it pays off all the way up; if it does not pay
+ * off even for the largest messages, compression is bypassed altogether.
+ *
+ * The library sees every message decompressed, whatever the threshold, so
+ * the samples are not skewed by the decisions made from them.
+ */
+class CompressionPolicy {
+	public interface Listener {
+		public void onThresholdChanged(int threshold);
+	}
+
+	/**
+	 * No decision yet: the app's threshold is used as it is.
+	 */
+	public static final int UNDECIDED = Integer.MIN_VALUE;
+	/**
+	 * Never compress.
+	 */
+	public static final int BYPASS = -1;
+
+	// Smaller messages are never worth compressing.
+	private static final int MIN_SIZE = 256;
+	// [256, 512), [512, 1K), ... [32K, inf)
+	private static final int BUCKETS = 8;
+	private static final int SAMPLE_INTERVAL = 8;
+	// Only the beginning of a large body is deflated.
+	private static final int MAX_SAMPLE_SIZE = 16 * 1024;
+	private static final int MIN_SAMPLES = 4;
+	private static final double WEIGHT = 0.25;
+	private static final double MAX_RATIO = 0.9;
+	// About 1MB/s.
+	private static final double LINK_NANOS_PER_BYTE = 1000;
+
+	private final Listener listener;
+	private final double[] ratio;
+	private final double[] nanosPerByte;
+	private final int[] samples;
+	private int skipped;
+	private int threshold;
+	private ConnectionInfo lastIn;
+	private ConnectionInfo lastOut;
+
+	private final ReentrantLock deflaterLock;
+	private Deflater deflater;
+	private byte[] buf;
+
+	public CompressionPolicy(Listener listener) {
+		this.listener = listener;
+		this.ratio = new double[BUCKETS];
+		this.nanosPerByte = new double[BUCKETS];
+		this.samples = new int[BUCKETS];
+		this.skipped = 0;
+		this.threshold = UNDECIDED;
+		this.deflaterLock = new ReentrantLock();
+		this.deflater = new Deflater();
+		this.buf = new byte[4096];
+	}
+
+	private static int bucket(int size) {
+		int b = 31 - Integer.numberOfLeadingZeros(size / MIN_SIZE);
+		return b < BUCKETS ? b : BUCKETS - 1;
+	}
+
+	private static int lowerBound(int bucket) {
+		return MIN_SIZE << bucket;
+	}
+
+	/**
+	 * Called for every message received. It may sample the body, on the
+	 * caller's thread.
+	 */
+	public void observe(byte[] body) {
+		if (body == null || body.length < MIN_SIZE) {
+			return;
+		}
+		synchronized (this) {
+			if (++skipped < SAMPLE_INTERVAL) {
+				return;
+			}
+			skipped = 0;
+		}
+		// Another reader is sampling; this one does not need to.
+		if (!deflaterLock.tryLock()) {
+			return;
+		}
+		int in = Math.min(body.length, MAX_SAMPLE_SIZE);
+		int out = 0;
+		long start = System.nanoTime();
+		try {
+			if (deflater == null) {
+				return;
+			}
+			deflater.reset();
+			deflater.setInput(body, 0, in);
+			deflater.finish();
+			while (!deflater.finished()) {
+				out += deflater.deflate(buf);
+			}
+		} finally {
+			deflaterLock.unlock();
+		}
+		long nanos = System.nanoTime() - start;
+		Metrics.COMPRESSION_SAMPLE.record(nanos);
+		Metrics.COMPRESSION_RATIO.record(out * 1000L / in);
+		int changed = record(bucket(body.length), (double) out / in,
+				(double) nanos / in);
+		if (changed != UNDECIDED && listener != null) {
+			listener.onThresholdChanged(changed);
+		}
+	}
+
+	/**
+	 * @return the new threshold, or UNDECIDED if it has not changed.
+	 */
+	private synchronized int record(int b, double r, double npb) {
+		if (samples[b] == 0) {
+			ratio[b] = r;
+			nanosPerByte[b] = npb;
+		} else {
+			ratio[b] += (r - ratio[b]) * WEIGHT;
+			nanosPerByte[b] += (npb - nanosPerByte[b]) * WEIGHT;
+		}
+		samples[b]++;
+		int t = decide();
+		if (t == threshold) {
+			return UNDECIDED;
+		}
+		threshold = t;
+		Metrics.COMPRESSION_THRESHOLD_CHANGES.inc();
+		if (t == BYPASS) {
+			Metrics.COMPRESSION_BYPASSED.inc();
+		}
+		return t;
+	}
+
+	private int decide() {
+		boolean sampled = false;
+		int lowest = -1;
+		for (int b = BUCKETS - 1; b >= 0; b--) {
+			if (samples[b] < MIN_SAMPLES) {
+				continue;
+			}
+			sampled = true;
+			if (ratio[b] > MAX_RATIO
+					|| nanosPerByte[b] > (1 - ratio[b]) * LINK_NANOS_PER_BYTE) {
+				break;
+			}
+			lowest = b;
+		}
+		if (!sampled) {
+			return UNDECIDED;
+		}
+		return lowest < 0 ? BYPASS : lowerBound(lowest);
+	}
+
+	public synchronized int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return cinfo with the threshold decided here. It is left as it is if
+	 *         nothing has been decided yet, or if the app never wants
+	 *         messages compressed.
+	 */
+	public synchronized ConnectionInfo apply(ConnectionInfo cinfo) {
+		int t = threshold;
+		if (t == UNDECIDED || cinfo.getCompressThreshold() <= 0
+				|| cinfo.getCompressThreshold() == t) {
+			return cinfo;
+		}
+		// Called on every command: do not make a new one each time.
+		if (cinfo != lastIn || lastOut.getCompressThreshold() != t) {
+			lastIn = cinfo;
+			lastOut = cinfo.withCompressThreshold(t);
+		}
+		return lastOut;
+	}
+
+	public void close() {
+		deflaterLock.lock();
+		try {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		} finally {
+			deflaterLock.unlock();
+		}
+	}
+}
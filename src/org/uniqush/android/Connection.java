@@ -0,0 +1,354 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.uniqush.client.MessageCenter;
+
+import android.util.Log;
+
+/**
+ * One connection with the server and the state machine around it:
+ *
+ * DISCONNECTED -> CONNECTING -> CONFIGURING -> READY
+ *
+ * A READY connection goes back to CONFIGURING when the app changes its
+ * settings, and any state goes to DISCONNECTED when the connection fails or is
+ * closed. The I/O of each step is done by the service without holding any
+ * lock; this class only keeps the state and the tasks waiting for READY, and
+ * its monitor is never held while doing I/O or calling a task.
+ *
+ * Messages may be sent as soon as the connection has logged in, without
+ * waiting for CONFIGURING to finish: none of the settings change what the
+ * client sends.
+ */
+class Connection {
+	private static final String TAG = "UniqushConnection";
+
+	public static final int DISCONNECTED = ConnectionStateListener.STATE_DISCONNECTED;
+	public static final int CONNECTING = ConnectionStateListener.STATE_CONNECTING;
+	public static final int CONFIGURING = ConnectionStateListener.STATE_CONFIGURING;
+	public static final int READY = ConnectionStateListener.STATE_READY;
+
+	/**
+	 * Something to do with the connection once it is ready.
+	 */
+	public interface Task {
+		public void run(Connection conn);
+
+		public void fail(Exception e);
+	}
+
+	private ConnectionInfo info;
+	private MessageCenter center;
+	private int generation;
+	private MessageHandler appHandler;
+	private MessageHandler handler;
+	private Future<?> reader;
+
+	private int state;
+	private volatile long lastActivity;
+	private ConnectionInfo applied;
+	private ConnectionInfo target;
+	private ArrayList<Task> waiters;
+	private long stateSince;
+	private boolean loggedIn;
+	// Metrics.start() when it was made; 0 once something has been sent.
+	private long firstSendStart;
+
+	public Connection(ConnectionInfo info, MessageCenter center,
+			int generation, MessageHandler appHandler, MessageHandler handler) {
+		this.info = info;
+		this.center = center;
+		this.generation = generation;
+		this.appHandler = appHandler;
+		this.handler = handler;
+		this.reader = null;
+		this.state = CONNECTING;
+		this.applied = null;
+		this.lastActivity = KeepaliveScheduler.now();
+		this.target = info;
+		this.waiters = new ArrayList<Task>();
+		this.stateSince = System.nanoTime();
+		this.loggedIn = false;
+		this.firstSendStart = Metrics.start();
+	}
+
+	/**
+	 * @return the information used to connect with the server.
+	 */
+	public ConnectionInfo getInfo() {
+		return info;
+	}
+
+	public MessageCenter getCenter() {
+		return center;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return the app's handler.
+	 */
+	public MessageHandler getAppHandler() {
+		return appHandler;
+	}
+
+	/**
+	 * @return the handler used by the connection, which wraps the app's
+	 *         handler.
+	 */
+	public MessageHandler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * Note that something has just been written to the server.
+	 */
+	public void touch() {
+		lastActivity = KeepaliveScheduler.now();
+	}
+
+	/**
+	 * @return when something was last written, as KeepaliveScheduler.now().
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * The server has accepted the login.
+	 */
+	public synchronized void setLoggedIn() {
+		loggedIn = true;
+	}
+
+	/**
+	 * @return true if messages can be sent, which is from the login on,
+	 *         possibly before READY.
+	 */
+	public synchronized boolean canSend() {
+		return loggedIn && state != DISCONNECTED;
+	}
+
+	/**
+	 * Note that a message has been sent. The first one on the connection is
+	 * timed from when the connection was made.
+	 */
+	public void sent() {
+		long start;
+		synchronized (this) {
+			start = firstSendStart;
+			firstSendStart = 0;
+		}
+		Metrics.FIRST_SEND.since(start);
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+	/**
+	 * @return false if the connection has been closed, or its reader has
+	 *         finished, which means the server has gone away.
+	 */
+	public synchronized boolean isAlive() {
+		return state != DISCONNECTED && (reader == null || !reader.isDone());
+	}
+
+	/**
+	 * @return the settings which have been sent to the server, or null.
+	 */
+	public synchronized ConnectionInfo getApplied() {
+		return applied;
+	}
+
+	public synchronized void setApplied(ConnectionInfo applied) {
+		this.applied = applied;
+	}
+
+	/**
+	 * @return the settings the connection should be configured with.
+	 */
+	public synchronized ConnectionInfo getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return true if the settings differ from the ones which have been sent
+	 *         to the server.
+	 */
+	public static boolean needsConfig(ConnectionInfo target,
+			ConnectionInfo applied) {
+		if (applied == null) {
+			return true;
+		}
+		return target.shouldReconfig(applied)
+				|| target.isVisible() != applied.isVisible()
+				|| target.shouldSubscribe() != applied.shouldSubscribe();
+	}
+
+	/**
+	 * Ask a READY connection to be configured with new settings.
+	 *
+	 * @return true if the connection went from READY to CONFIGURING, and the
+	 *         caller should configure it.
+	 */
+	public synchronized boolean reconfigure(ConnectionInfo newTarget) {
+		if (state == DISCONNECTED) {
+			return false;
+		}
+		target = newTarget;
+		if (state != READY || !needsConfig(newTarget, applied)) {
+			// Either it is not configured yet and will pick up the new
+			// target, or there is nothing to do.
+			return false;
+		}
+		setState(CONFIGURING);
+		return true;
+	}
+
+	public synchronized void setConfiguring() {
+		if (state != DISCONNECTED) {
+			setState(CONFIGURING);
+		}
+	}
+
+	/**
+	 * Run the task right away if the connection is ready, or queue it until
+	 * the connection becomes ready.
+	 */
+	public void runWhenReady(Task task) {
+		boolean fail = false;
+		synchronized (this) {
+			if (state == DISCONNECTED) {
+				fail = true;
+			} else if (state != READY) {
+				waiters.add(task);
+				return;
+			}
+		}
+		if (fail) {
+			task.fail(new Exception("Not ready"));
+		} else {
+			task.run(this);
+		}
+	}
+
+	/**
+	 * Run the waiting tasks in order, then become READY. Tasks queued while
+	 * this is running are run before the state changes, so they never overtake
+	 * the older ones.
+	 *
+	 * @return READY; DISCONNECTED if the connection has been closed meanwhile;
+	 *         or CONFIGURING if the target settings have changed since they
+	 *         were applied, in which case the caller should apply them and
+	 *         call it again.
+	 */
+	public int ready() {
+		while (true) {
+			List<Task> tasks;
+			synchronized (this) {
+				if (state == DISCONNECTED) {
+					return DISCONNECTED;
+				}
+				if (target != applied && needsConfig(target, applied)) {
+					return CONFIGURING;
+				}
+				if (waiters.isEmpty()) {
+					setState(READY);
+					return READY;
+				}
+				tasks = waiters;
+				waiters = new ArrayList<Task>();
+			}
+			for (Task t : tasks) {
+				t.run(this);
+			}
+		}
+	}
+
+	public synchronized void setReader(Future<?> reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Stop the connection. The reader notices the closed socket and finishes
+	 * on its own; it is interrupted as well in case it is blocked somewhere
+	 * else. Nothing waits for it.
+	 */
+	public void stop() {
+		Future<?> r;
+		synchronized (this) {
+			r = reader;
+		}
+		center.stop();
+		if (r != null) {
+			r.cancel(true);
+		}
+	}
+
+	/**
+	 * Mark the connection as DISCONNECTED and fail the waiting tasks. It does
+	 * not stop the connection.
+	 *
+	 * @return false if it was already DISCONNECTED.
+	 */
+	public boolean close(Exception reason) {
+		List<Task> tasks;
+		synchronized (this) {
+			if (state == DISCONNECTED) {
+				return false;
+			}
+			setState(DISCONNECTED);
+			tasks = waiters;
+			waiters = new ArrayList<Task>();
+		}
+		for (Task t : tasks) {
+			t.fail(reason);
+		}
+		return true;
+	}
+
+	private void setState(int newState) {
+		long now = System.nanoTime();
+		long spent = now - stateSince;
+		switch (state) {
+		case CONNECTING:
+			Metrics.STATE_CONNECTING.record(spent);
+			break;
+		case CONFIGURING:
+			Metrics.STATE_CONFIGURING.record(spent);
+			break;
+		case READY:
+			Metrics.STATE_READY.record(spent);
+			break;
+		}
+		if (Log.isLoggable(TAG, Log.DEBUG)) {
+			Log.d(TAG, info.toString() + ": state " + state + " -> "
+					+ newState + " after " + (spent / 1000000) + " ms");
+		}
+		state = newState;
+		stateSince = now;
+	}
+}
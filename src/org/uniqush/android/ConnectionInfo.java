@@ -17,20 +17,31 @@
 
 package org.uniqush.android;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * The server, account and settings to connect with. Apart from the
+ * subscription, it is immutable: the settings the server should have are
+ * summed up in a fingerprint once, so that comparing them with the ones
+ * already applied, which is done on every command, finds a change with a
+ * single comparison. Equal fingerprints are still confirmed field by field.
+ */
 public class ConnectionInfo {
-	private String host;
-	private int port;
-	private String service;
-	private String username;
+	private final String host;
+	private final int port;
+	private final String service;
+	private final String username;
 	private boolean subscribe;
 
-	private boolean visible = true;
-	private int compressThreshold = 1024;
-	private int digestThreshold = 4096;
-	private List<String> digestFields;
+	private final boolean visible;
+	private final int compressThreshold;
+	private final int digestThreshold;
+	// Sorted, without duplicates; null if there is none.
+	private final String[] digestFieldSet;
+	private final List<String> digestFields;
+	private final long configFingerprint;
 
 	public boolean isVisible() {
 		return visible;
@@ -44,45 +55,73 @@ public class ConnectionInfo {
 		return this.digestThreshold;
 	}
 
+	/**
+	 * @return the digest fields, sorted and without duplicates, or null. The
+	 *         list cannot be modified.
+	 */
 	public List<String> getDigestFields() {
 		return this.digestFields;
 	}
 
+	/**
+	 * @return true if the thresholds or the digest fields differ from the ones
+	 *         in i, i.e. the server has to be configured again. The order of
+	 *         the digest fields does not matter, nor does the value of a
+	 *         negative threshold.
+	 */
 	protected boolean shouldReconfig(ConnectionInfo i) {
 		if (i == null) {
 			return true;
 		}
-		if (!(i.compressThreshold < 0 && this.compressThreshold < 0)) {
-			if (i.compressThreshold != this.compressThreshold) {
-				return true;
-			}
-		}
-
-		if (!(i.digestThreshold < 0 && this.digestThreshold < 0)) {
-			if (i.digestThreshold != this.digestThreshold) {
-				return true;
-			}
-		}
-
-		if (i.digestFields == null && this.digestFields == null) {
+		if (i == this) {
 			return false;
 		}
-
-		if ((i.digestFields == null && this.digestFields != null)
-				|| (i.digestFields != null && this.digestFields == null)) {
+		if (i.configFingerprint != this.configFingerprint) {
 			return true;
 		}
+		// Most likely the same settings; rule out a collision.
+		return normalize(i.compressThreshold) != normalize(this.compressThreshold)
+				|| normalize(i.digestThreshold) != normalize(this.digestThreshold)
+				|| !Arrays.equals(i.digestFieldSet, this.digestFieldSet);
+	}
 
-		if (i.digestFields.size() != this.digestFields.size()) {
-			return true;
-		}
+	private static int normalize(int threshold) {
+		return threshold < 0 ? -1 : threshold;
+	}
 
-		// XXX We do consider order though, which is not necessary.
-		if (!i.digestFields.equals(this.digestFields)) {
-			return true;
+	private static String[] toSet(String[] fields) {
+		if (fields.length == 0) {
+			return null;
 		}
+		String[] sorted = fields.clone();
+		Arrays.sort(sorted);
+		int n = 1;
+		for (int i = 1; i < sorted.length; i++) {
+			if (!sorted[i].equals(sorted[n - 1])) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+	}
 
-		return false;
+	/**
+	 * 64-bit FNV-1a over the normalized settings.
+	 */
+	private static long fingerprint(int compressThreshold,
+			int digestThreshold, String[] fieldSet) {
+		long h = 0xcbf29ce484222325L;
+		h = (h ^ normalize(compressThreshold)) * 0x100000001b3L;
+		h = (h ^ normalize(digestThreshold)) * 0x100000001b3L;
+		if (fieldSet != null) {
+			for (String f : fieldSet) {
+				for (int i = 0; i < f.length(); i++) {
+					h = (h ^ f.charAt(i)) * 0x100000001b3L;
+				}
+				// Keep ["ab"] apart from ["a", "b"].
+				h = (h ^ 0xffff) * 0x100000001b3L;
+			}
+		}
+		return h;
 	}
 
 	/**
@@ -124,7 +163,7 @@ public class ConnectionInfo {
 	 * @param digestFields
 	 *            If a digest of a message needs to be sent, then headers whose
 	 *            field name is in the digestFields will be sent along the
-	 *            digest as parameters.
+	 *            digest as parameters. The order does not matter.
 	 * @throws IllegalArgumentException
 	 *             when any argument is invalid.
 	 */
@@ -137,7 +176,7 @@ public class ConnectionInfo {
 			port = DEFAULT_PORT;
 		}
 
-		// TODO validate the host name
+		validateHostName(host);
 		this.host = host;
 		this.port = port;
 		this.service = service;
@@ -147,12 +186,43 @@ public class ConnectionInfo {
 		this.visible = visible;
 		this.compressThreshold = compressThreshold;
 		this.digestThreshold = digestThreshold;
-		if (digestFields.length > 0) {
-			this.digestFields = new ArrayList<String>(digestFields.length);
-			for (String f : digestFields) {
-				this.digestFields.add(f);
+		for (String f : digestFields) {
+			if (f == null) {
+				throw new IllegalArgumentException("digest field is null");
 			}
 		}
+		this.digestFieldSet = toSet(digestFields);
+		if (digestFieldSet != null) {
+			this.digestFields = Collections.unmodifiableList(Arrays
+					.asList(digestFieldSet));
+		} else {
+			this.digestFields = null;
+		}
+		this.configFingerprint = fingerprint(compressThreshold,
+				digestThreshold, digestFieldSet);
+	}
+
+	private ConnectionInfo(ConnectionInfo c, int compressThreshold) {
+		this.host = c.host;
+		this.port = c.port;
+		this.service = c.service;
+		this.username = c.username;
+		this.subscribe = c.subscribe;
+
+		this.visible = c.visible;
+		this.compressThreshold = compressThreshold;
+		this.digestThreshold = c.digestThreshold;
+		this.digestFieldSet = c.digestFieldSet;
+		this.digestFields = c.digestFields;
+		this.configFingerprint = fingerprint(compressThreshold,
+				digestThreshold, digestFieldSet);
+	}
+
+	/**
+	 * @return a copy with another compress threshold.
+	 */
+	ConnectionInfo withCompressThreshold(int compressThreshold) {
+		return new ConnectionInfo(this, compressThreshold);
 	}
 
 	private static final int DEFAULT_PORT = 8964;
@@ -173,6 +243,18 @@ public class ConnectionInfo {
 		}
 	}
 
+	private void validateHostName(String host) {
+		if (host == null || host.length() == 0) {
+			throw new IllegalArgumentException("Host name is empty");
+		}
+		for (int i = 0; i < host.length(); i++) {
+			if (Character.isWhitespace(host.charAt(i))) {
+				throw new IllegalArgumentException(
+						"Host name should not contain white space");
+			}
+		}
+	}
+
 	private void validateServiceName(String service) {
 		validateString("Service name", service, MAX_SERVICE_NAME_LENGTH,
 				"\n\t,;:");
@@ -259,6 +341,14 @@ public class ConnectionInfo {
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		int h = service.hashCode();
+		h = h * 31 + username.hashCode();
+		h = h * 31 + host.hashCode();
+		return h * 31 + port;
+	}
+
 	@Override
 	public String toString() {
 		return host + ":" + port + ";" + service + "," + username;
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The open connections, at most one per ConnectionInfo, i.e. per server and
+ * account.
+ * 
+ * One of them is the service's current connection. The others are kept open,
+ * so that switching back to their account costs nothing, until they have been
+ * idle for too long or the pool is full. A full pool gives up the connection
+ * used least recently.
+ * 
+ * Not thread safe: the service only uses it with connLock held. Connections
+ * taken out of the pool are returned to the caller to be stopped, so that no
+ * I/O is done with the lock held.
+ */
+class ConnectionPool {
+	private static class Entry {
+		Connection conn;
+		long lastUsed;
+
+		Entry(Connection conn, long now) {
+			this.conn = conn;
+			this.lastUsed = now;
+		}
+	}
+
+	private int maxConnections;
+	private long idleTimeout;
+	// In the order of access: the least recently used comes first.
+	private LinkedHashMap<ConnectionInfo, Entry> entries;
+
+	/**
+	 * @param maxConnections
+	 *            Max number of open connections, the current one included.
+	 * @param idleTimeout
+	 *            Milliseconds a connection other than the current one stays
+	 *            open without being used.
+	 */
+	public ConnectionPool(int maxConnections, long idleTimeout) {
+		if (maxConnections <= 0) {
+			maxConnections = 1;
+		}
+		this.maxConnections = maxConnections;
+		this.idleTimeout = idleTimeout;
+		this.entries = new LinkedHashMap<ConnectionInfo, Entry>(16, 0.75f,
+				true);
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @return the open connection for info, or null if there is none.
+	 */
+	public Connection get(ConnectionInfo info, long now) {
+		Entry e = entries.get(info);
+		if (e == null) {
+			return null;
+		}
+		if (!e.conn.isAlive()) {
+			entries.remove(info);
+			return null;
+		}
+		e.lastUsed = now;
+		return e.conn;
+	}
+
+	/**
+	 * @return the open connection of the account, to whichever server, or
+	 *         null if there is none.
+	 */
+	public Connection find(String service, String username) {
+		for (Entry e : entries.values()) {
+			ConnectionInfo info = e.conn.getInfo();
+			if (e.conn.isAlive() && service.equals(info.getServiceName())
+					&& username.equals(info.getUserName())) {
+				return e.conn;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The connection is no longer the current one. It becomes idle from now.
+	 */
+	public void release(Connection conn, long now) {
+		Entry e = entries.get(conn.getInfo());
+		if (e != null && e.conn == conn) {
+			e.lastUsed = now;
+		}
+	}
+
+	/**
+	 * Add the connection, which is about to become the current one.
+	 * 
+	 * @return the connections which have to go to make room for it.
+	 */
+	public List<Connection> put(Connection conn, long now) {
+		ArrayList<Connection> evicted = new ArrayList<Connection>();
+		Entry old = entries.put(conn.getInfo(), new Entry(conn, now));
+		if (old != null && old.conn != conn) {
+			evicted.add(old.conn);
+		}
+		Iterator<Entry> iter = entries.values().iterator();
+		while (entries.size() > maxConnections && iter.hasNext()) {
+			Entry e = iter.next();
+			if (e.conn == conn) {
+				continue;
+			}
+			iter.remove();
+			evicted.add(e.conn);
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return true if the connection was in the pool.
+	 */
+	public boolean remove(Connection conn) {
+		Entry e = entries.get(conn.getInfo());
+		if (e == null || e.conn != conn) {
+			return false;
+		}
+		entries.remove(conn.getInfo());
+		return true;
+	}
+
+	/**
+	 * Take out the connections, except current, which are broken or have been
+	 * idle for longer than the idle timeout.
+	 */
+	public List<Connection> evictIdle(Connection current, long now) {
+		ArrayList<Connection> evicted = new ArrayList<Connection>();
+		Iterator<Map.Entry<ConnectionInfo, Entry>> iter = entries.entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			Entry e = iter.next().getValue();
+			if (e.conn == current) {
+				continue;
+			}
+			if (!e.conn.isAlive() || now - e.lastUsed >= idleTimeout) {
+				iter.remove();
+				evicted.add(e.conn);
+			}
+		}
+		return evicted;
+	}
+
+	public List<Connection> getAll() {
+		ArrayList<Connection> all = new ArrayList<Connection>(entries.size());
+		for (Entry e : entries.values()) {
+			all.add(e.conn);
+		}
+		return all;
+	}
+
+	public List<Connection> removeAll() {
+		ArrayList<Connection> all = new ArrayList<Connection>(entries.size());
+		for (Entry e : entries.values()) {
+			all.add(e.conn);
+		}
+		entries.clear();
+		return all;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+/**
+ * A MessageHandler may also implement this interface to be told when the
+ * state of its connection with the server changes.
+ */
+public interface ConnectionStateListener {
+	/**
+	 * There is no connection, and the library is not trying to make one.
+	 */
+	public static final int STATE_DISCONNECTED = 0;
+
+	/**
+	 * The library is connecting to (and logging in) the server.
+	 */
+	public static final int STATE_CONNECTING = 1;
+
+	/**
+	 * The library is sending the settings (thresholds, visibility,
+	 * subscription) to the server.
+	 */
+	public static final int STATE_CONFIGURING = 5;
+
+	/**
+	 * The connection is ready to use.
+	 */
+	public static final int STATE_READY = 2;
+
+	/**
+	 * The connection was lost because of a transient error. The library will
+	 * reconnect after a while.
+	 */
+	public static final int STATE_WAITING_TO_RECONNECT = 3;
+
+	/**
+	 * The connection failed because of an error which will not go away by
+	 * reconnecting, e.g. a login failure. The service will stop.
+	 */
+	public static final int STATE_FAILED = 4;
+
+	/**
+	 * @param state
+	 *            One of the STATE_* constants.
+	 * @param reason
+	 *            The error which caused the change, or null.
+	 */
+	public void onConnectionStateChanged(int state, Exception reason);
+}
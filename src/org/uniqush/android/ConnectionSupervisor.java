@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.login.LoginException;
+
+import android.util.Log;
+
+/**
+ * Keeps track of the state of the connection and decides what to do when it
+ * breaks.
+ *
+ * A transient error (e.g. an IOException) leads to a reconnect after an
+ * exponentially growing, jittered delay. A fatal error (e.g. a login failure)
+ * gives up and stops the service.
+ *
+ * Every connection gets a generation number when it is being made. Only the
+ * current connection is supervised: events from the others are ignored.
+ */
+class ConnectionSupervisor {
+	private static final String TAG = "UniqushConnectionSupervisor";
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+	public interface Callback {
+		/**
+		 * Throw away the current connection, if any, and make a new one.
+		 */
+		public void reconnect();
+
+		/**
+		 * Give up and stop the service.
+		 */
+		public void giveUp();
+	}
+
+	private static volatile int currentState = ConnectionStateListener.STATE_DISCONNECTED;
+
+	private ScheduledExecutorService timer;
+	private Callback callback;
+	private Random random;
+
+	private int state;
+	private int generation;
+	private int lastGeneration;
+	private int attempts;
+	private ConnectionStateListener listener;
+	private ScheduledFuture<?> pendingReconnect;
+
+	public ConnectionSupervisor(ScheduledExecutorService timer,
+			Callback callback) {
+		this.timer = timer;
+		this.callback = callback;
+		this.random = new Random();
+		this.state = ConnectionStateListener.STATE_DISCONNECTED;
+		this.generation = 0;
+		this.lastGeneration = 0;
+		this.attempts = 0;
+		this.listener = null;
+		this.pendingReconnect = null;
+	}
+
+	/**
+	 * @return the state of the connection in this process.
+	 */
+	public static int currentState() {
+		return currentState;
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+	/**
+	 * @return true if the error will not go away by reconnecting.
+	 */
+	public static boolean isFatal(Exception e) {
+		return e instanceof LoginException || e instanceof SecurityException;
+	}
+
+	/**
+	 * A new connection replaces the current one, if any.
+	 *
+	 * @param handler
+	 *            The app's handler of the connection. It will be told about
+	 *            state changes if it implements ConnectionStateListener.
+	 * @return the generation of the new connection.
+	 */
+	public synchronized int newConnection(MessageHandler handler) {
+		cancelReconnect();
+		generation = ++lastGeneration;
+		setListener(handler);
+		return generation;
+	}
+
+	/**
+	 * An open connection, made earlier by newConnection(), becomes the current
+	 * one again.
+	 *
+	 * @param connState
+	 *            The state of the connection; one of the Connection constants.
+	 */
+	public void resumeConnection(int gen, MessageHandler handler, int connState) {
+		synchronized (this) {
+			cancelReconnect();
+			generation = gen;
+			attempts = 0;
+			setListener(handler);
+		}
+		setState(connState, null);
+	}
+
+	private void setListener(MessageHandler handler) {
+		if (handler instanceof ConnectionStateListener) {
+			listener = (ConnectionStateListener) handler;
+		} else {
+			listener = null;
+		}
+	}
+
+	public void onConnecting(int gen) {
+		synchronized (this) {
+			if (gen != generation) {
+				return;
+			}
+		}
+		setState(ConnectionStateListener.STATE_CONNECTING, null);
+	}
+
+	public void onConfiguring(int gen) {
+		synchronized (this) {
+			if (gen != generation) {
+				return;
+			}
+		}
+		setState(ConnectionStateListener.STATE_CONFIGURING, null);
+	}
+
+	public void onConnected(int gen) {
+		synchronized (this) {
+			if (gen != generation) {
+				return;
+			}
+			attempts = 0;
+		}
+		setState(ConnectionStateListener.STATE_READY, null);
+	}
+
+	/**
+	 * The connection could not be made, or it broke.
+	 */
+	public void onError(int gen, Exception e) {
+		synchronized (this) {
+			if (gen != generation
+					|| state == ConnectionStateListener.STATE_DISCONNECTED
+					|| state == ConnectionStateListener.STATE_FAILED) {
+				return;
+			}
+		}
+		if (isFatal(e)) {
+			Log.e(TAG, "fatal error: " + e.toString());
+			setState(ConnectionStateListener.STATE_FAILED, e);
+			callback.giveUp();
+			return;
+		}
+		scheduleReconnect(e);
+	}
+
+	/**
+	 * The connection was closed, but not by us.
+	 */
+	public void onClosed(int gen) {
+		synchronized (this) {
+			if (gen != generation
+					|| state == ConnectionStateListener.STATE_DISCONNECTED
+					|| state == ConnectionStateListener.STATE_FAILED) {
+				return;
+			}
+		}
+		scheduleReconnect(null);
+	}
+
+	/**
+	 * We closed the connection on purpose. Do not reconnect.
+	 */
+	public void onDisconnected() {
+		synchronized (this) {
+			cancelReconnect();
+			generation = ++lastGeneration;
+		}
+		setState(ConnectionStateListener.STATE_DISCONNECTED, null);
+	}
+
+	private void scheduleReconnect(Exception reason) {
+		long delay;
+		synchronized (this) {
+			if (pendingReconnect != null) {
+				return;
+			}
+			long backoff = MIN_BACKOFF << Math.min(attempts, 20);
+			if (backoff > MAX_BACKOFF) {
+				backoff = MAX_BACKOFF;
+			}
+			// Jitter, so that devices which lost the connection together do
+			// not come back together.
+			delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+			attempts++;
+			try {
+				pendingReconnect = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (ConnectionSupervisor.this) {
+							pendingReconnect = null;
+						}
+						callback.reconnect();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// The service is shutting down.
+				return;
+			}
+		}
+		Metrics.RECONNECTS.inc();
+		Log.i(TAG, "reconnect in " + delay + " ms");
+		setState(ConnectionStateListener.STATE_WAITING_TO_RECONNECT, reason);
+	}
+
+	private void cancelReconnect() {
+		if (pendingReconnect != null) {
+			pendingReconnect.cancel(false);
+			pendingReconnect = null;
+		}
+	}
+
+	private void setState(int newState, Exception reason) {
+		ConnectionStateListener l;
+		synchronized (this) {
+			if (state == newState) {
+				return;
+			}
+			state = newState;
+			currentState = newState;
+			l = listener;
+		}
+		if (l != null) {
+			l.onConnectionStateChanged(newState, reason);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.Map;
+
+/**
+ * Parses the uniqush part of a GCM push.
+ *
+ * The "uq." extra is the descriptor:
+ * <pre>
+ * id,size,service,user[,senderService,senderUser]
+ * </pre>
+ * The digest parameters come either as one extra per parameter, or packed
+ * into the single "uq.p" extra as key=value pairs separated by '&amp;', with
+ * '%', '&amp;' and '=' percent-escaped. Every extra costs its key and some
+ * JSON framing in the GCM payload, so packing lets more parameters fit under
+ * the payload limit.
+ *
+ * The descriptor is read in one pass; the only objects created are the
+ * strings it yields. An instance is not thread safe and is meant to be reused
+ * by a single thread.
+ */
+class DigestParser {
+	public static final String DESCRIPTOR = "uq.";
+	public static final String PACKED = "uq.p";
+	public static final String GCM_SENDER = "from";
+
+	private String msgId;
+	private int size;
+	private String service;
+	private String user;
+	private String senderService;
+	private String sender;
+
+	/**
+	 * @return false if the descriptor is missing or malformed, e.g. with an
+	 *         empty id, service or user, or with only half of the sender, in
+	 *         which case the push did not come from uniqush.
+	 */
+	public boolean parse(String descriptor) {
+		msgId = null;
+		size = 0;
+		service = null;
+		user = null;
+		senderService = null;
+		sender = null;
+		if (descriptor == null) {
+			return false;
+		}
+		int len = descriptor.length();
+		int start = 0;
+		for (int field = 0; field < 6 && start <= len; field++) {
+			int end = descriptor.indexOf(',', start);
+			if (end < 0) {
+				end = len;
+			}
+			switch (field) {
+			case 0:
+				msgId = descriptor.substring(start, end);
+				break;
+			case 1:
+				size = parseSize(descriptor, start, end);
+				if (size < 0) {
+					return false;
+				}
+				break;
+			case 2:
+				service = descriptor.substring(start, end);
+				break;
+			case 3:
+				user = descriptor.substring(start, end);
+				break;
+			case 4:
+				senderService = descriptor.substring(start, end);
+				break;
+			case 5:
+				if (end > start) {
+					sender = descriptor.substring(start, end);
+				}
+				break;
+			}
+			start = end + 1;
+		}
+		// Every field up to the user has to be there, and not be empty; e.g.
+		// "id,10,service," has no user.
+		if (msgId == null || msgId.length() == 0 || service == null
+				|| service.length() == 0 || user == null
+				|| user.length() == 0) {
+			return false;
+		}
+		if (sender == null) {
+			if (senderService != null && senderService.length() > 0) {
+				// A sender's service without the sender.
+				return false;
+			}
+			senderService = null;
+		}
+		return true;
+	}
+
+	private static int parseSize(String s, int start, int end) {
+		if (start == end || end - start > 9) {
+			return -1;
+		}
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	public String getMsgId() {
+		return msgId;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 * @return null if the message was sent by the server.
+	 */
+	public String getSenderService() {
+		return senderService;
+	}
+
+	/**
+	 * @return null if the message was sent by the server.
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return true if the extra is not a digest parameter.
+	 */
+	public static boolean isReserved(String key) {
+		return key.equals(DESCRIPTOR) || key.equals(PACKED)
+				|| key.equals(GCM_SENDER);
+	}
+
+	/**
+	 * Decode the "uq.p" extra into out.
+	 */
+	public static void unpack(String packed, Map<String, String> out) {
+		int len = packed.length();
+		int start = 0;
+		while (start < len) {
+			int end = packed.indexOf('&', start);
+			if (end < 0) {
+				end = len;
+			}
+			int eq = packed.indexOf('=', start);
+			if (eq >= 0 && eq < end) {
+				out.put(unescape(packed, start, eq),
+						unescape(packed, eq + 1, end));
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Encode the parameters into the form of the "uq.p" extra.
+	 */
+	public static String pack(Map<String, String> params) {
+		StringBuilder sb = new StringBuilder(params.size() * 16);
+		for (Map.Entry<String, String> e : params.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append('&');
+			}
+			escape(sb, e.getKey());
+			sb.append('=');
+			escape(sb, e.getValue());
+		}
+		return sb.toString();
+	}
+
+	private static void escape(StringBuilder sb, String s) {
+		if (s == null) {
+			return;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '%':
+				sb.append("%25");
+				break;
+			case '&':
+				sb.append("%26");
+				break;
+			case '=':
+				sb.append("%3D");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	private static String unescape(String s, int start, int end) {
+		int pct = s.indexOf('%', start);
+		if (pct < 0 || pct >= end) {
+			return s.substring(start, end);
+		}
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == '%' && i + 2 < end) {
+				int hi = Character.digit(s.charAt(i + 1), 16);
+				int lo = Character.digit(s.charAt(i + 2), 16);
+				if (hi >= 0 && lo >= 0) {
+					sb.append((char) (hi << 4 | lo));
+					i += 2;
+					continue;
+				}
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -1,47 +1,171 @@
 package org.uniqush.android;
 
+import java.io.IOException;
 import java.util.Map;
 
 import org.uniqush.client.Message;
 
-import android.content.Context;
-
+/**
+ * Forwards everything to the app's handler, and tells the supervisor and the
+ * listener when the connection breaks.
+ */
 class ErrorHandler implements MessageHandler {
+	public interface Listener {
+		/**
+		 * The connection has broken. Stop using it.
+		 */
+		public void onBroken(Connection c, Exception e);
+	}
 
-	private Context context;
+	private ConnectionSupervisor supervisor;
+	private int generation;
 	private MessageHandler handler;
-
-	public ErrorHandler(Context context, MessageHandler handler) {
-		this.context = context;
+	private PrefetchCache prefetch;
+	private SeenIdCache seen;
+	private CompressionPolicy compression;
+	private volatile long lastReceived;
+	private Listener listener;
+	// The connection it handles; set once it has been made.
+	private volatile Connection connection;
+	// null if the handler does not take messages a page at a time.
+	private FetchWindow window;
+
+	public ErrorHandler(ConnectionSupervisor supervisor, int generation,
+			MessageHandler handler, PrefetchCache prefetch, SeenIdCache seen,
+			CompressionPolicy compression, Listener listener) {
+		this.supervisor = supervisor;
+		this.generation = generation;
 		this.handler = handler;
+		this.prefetch = prefetch;
+		this.seen = seen;
+		this.compression = compression;
+		this.listener = listener;
+		if (handler instanceof FetchListener) {
+			this.window = new FetchWindow();
+		}
+	}
+
+	void setConnection(Connection c) {
+		this.connection = c;
+	}
+
+	private void broken(Exception e) {
+		Connection c = connection;
+		if (c != null && listener != null) {
+			listener.onBroken(c, e);
+		}
+	}
+
+	/**
+	 * @return null if the app's handler is not a FetchListener.
+	 */
+	FetchWindow getFetchWindow() {
+		return window;
+	}
+
+	private void beforeDelivery() {
+		if (window != null) {
+			window.await();
+		}
+	}
+
+	private void afterDelivery() {
+		if (window != null && window.consume()) {
+			((FetchListener) handler).onPageDelivered(window);
+		}
+	}
+
+	private boolean hold(String dstService, String dstUser,
+			String srcService, String srcUser, String id, Message msg) {
+		if (prefetch == null || id == null) {
+			return false;
+		}
+		PrefetchCache.Held m = new PrefetchCache.Held();
+		m.dstService = dstService;
+		m.dstUser = dstUser;
+		m.srcService = srcService;
+		m.srcUser = srcUser;
+		m.id = id;
+		m.msg = msg;
+		return prefetch.offer(m);
+	}
+
+	/**
+	 * @return when something was last received, as KeepaliveScheduler.now().
+	 */
+	long getLastReceived() {
+		return lastReceived;
+	}
+
+	private void received() {
+		lastReceived = KeepaliveScheduler.now();
+	}
+
+	private void observe(Message msg) {
+		received();
+		if (compression != null && msg != null) {
+			compression.observe(msg.getBody());
+		}
 	}
 
 	@Override
 	public void onMessageFromServer(String dstService, String dstUser,
 			String id, Message msg) {
+		observe(msg);
+		msg = CompressionDictionary.decompress(msg);
+		if (hold(dstService, dstUser, null, null, id, msg)) {
+			return;
+		}
+		if (seen != null && !seen.onMessage(id)) {
+			return;
+		}
+		beforeDelivery();
 		handler.onMessageFromServer(dstService, dstUser, id, msg);
+		afterDelivery();
 	}
 
 	@Override
 	public void onMessageFromUser(String dstService, String dstUser,
 			String srcService, String srcUser, String id, Message msg) {
+		observe(msg);
+		msg = CompressionDictionary.decompress(msg);
+		if (hold(dstService, dstUser, srcService, srcUser, id, msg)) {
+			return;
+		}
+		if (seen != null && !seen.onMessage(id)) {
+			return;
+		}
+		beforeDelivery();
 		handler.onMessageFromUser(dstService, dstUser, srcService, srcUser, id,
 				msg);
+		afterDelivery();
 	}
 
 	@Override
 	public void onMessageDigestFromServer(boolean online, String dstService, String dstUser,
 			int size, String id, Map<String, String> parameters) {
+		received();
+		if (seen != null && !seen.onDigest(id)) {
+			return;
+		}
+		beforeDelivery();
 		handler.onMessageDigestFromServer(online, dstService, dstUser, size, id,
 				parameters);
+		afterDelivery();
 	}
 
 	@Override
 	public void onMessageDigestFromUser(boolean online, String dstService, String dstUser,
 			String srcService, String srcUser, int size, String id,
 			Map<String, String> parameters) {
+		received();
+		if (seen != null && !seen.onDigest(id)) {
+			return;
+		}
+		beforeDelivery();
 		handler.onMessageDigestFromUser(online, dstService, dstUser, srcService,
 				srcUser, size, id, parameters);
+		afterDelivery();
 	}
 
 	@Override
@@ -51,14 +175,22 @@ class ErrorHandler implements MessageHandler {
 
 	@Override
 	public void onClosed() {
-		MessageCenter.stop(context, 0);
+		if (window != null) {
+			window.close();
+		}
+		supervisor.onClosed(generation);
 		handler.onClosed();
+		broken(new IOException("Connection closed"));
 	}
 
 	@Override
 	public void onError(Exception e) {
-		MessageCenter.stop(context, 0);
+		if (window != null) {
+			window.close();
+		}
+		supervisor.onError(generation, e);
 		handler.onError(e);
+		broken(e);
 	}
 
 	@Override
@@ -73,10 +205,20 @@ class ErrorHandler implements MessageHandler {
 
 	@Override
 	public void onResult(int id, Exception e) {
-		if (e != null) {
-			MessageCenter.stop(context, 0);
-		}
+		onCallFinished(e);
 		handler.onResult(id, e);
 	}
 
+	/**
+	 * A call on this connection has finished. Only an I/O error means the
+	 * connection is broken. Others, e.g. a rejected command, are just
+	 * reported.
+	 */
+	void onCallFinished(Exception e) {
+		if (e instanceof IOException) {
+			supervisor.onError(generation, e);
+			broken(e);
+		}
+	}
+
 }
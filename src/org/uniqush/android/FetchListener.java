@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+/**
+ * A MessageHandler may also implement this interface to take in the messages
+ * fetched by requestMessages(since) a page at a time. See
+ * MessageCenter.setFetchPageSize().
+ */
+public interface FetchListener {
+	/**
+	 * A page of messages and digests has been delivered. Nothing more is
+	 * delivered on the connection until the app calls window.nextPage() (or
+	 * grant(), or close()), which it may do from any thread, at any time.
+	 * 
+	 * It is called on the thread reading from the connection. Meanwhile the
+	 * server is held back by TCP flow control, so the memory taken by a large
+	 * backlog stays bounded.
+	 */
+	public void onPageDelivered(FetchWindow window);
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+/**
+ * Credits for the messages and digests delivered on a connection. Each one
+ * delivered takes a credit; with none left, the connection's reader waits for
+ * more before delivering the next. The window is closed, i.e. there is no
+ * limit, until requestMessages(since) opens it with a page worth of credits,
+ * and stays open until close() or the connection is closed.
+ * 
+ * The server has no notion of pages, so neither a page nor the end of the
+ * backlog is marked: a page is simply the next pageSize messages or digests,
+ * whether they came from the backlog or not.
+ * 
+ * While the reader waits, nothing else is received on the connection, new
+ * messages included. If no credit comes within PAGE_TIMEOUT, the window is
+ * closed and the rest is delivered without waiting.
+ */
+public final class FetchWindow {
+	static final long PAGE_TIMEOUT = 60 * 1000;
+
+	private int pageSize;
+	// < 0: closed
+	private int credits;
+
+	FetchWindow() {
+		this.pageSize = 0;
+		this.credits = -1;
+	}
+
+	synchronized void open(int pageSize) {
+		this.pageSize = pageSize;
+		this.credits = pageSize;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for a credit, or until PAGE_TIMEOUT, after which the window is
+	 * closed. Called by the reader before delivering.
+	 */
+	void await() {
+		synchronized (this) {
+			if (credits != 0) {
+				return;
+			}
+		}
+		long start = Metrics.start();
+		synchronized (this) {
+			try {
+				long deadline = System.nanoTime() / 1000000 + PAGE_TIMEOUT;
+				while (credits == 0) {
+					long left = deadline - System.nanoTime() / 1000000;
+					if (left <= 0) {
+						// The app has stopped asking; stop holding the
+						// connection up for it.
+						credits = -1;
+						break;
+					}
+					wait(left);
+				}
+			} catch (InterruptedException e) {
+				// The connection is being stopped. Let the message through.
+				Thread.currentThread().interrupt();
+			}
+		}
+		Metrics.FETCH_PAUSE.since(start);
+	}
+
+	/**
+	 * Take a credit. Called by the reader after delivering.
+	 * 
+	 * @return true if it was the last one of the page.
+	 */
+	synchronized boolean consume() {
+		if (credits <= 0) {
+			return false;
+		}
+		credits--;
+		return credits == 0;
+	}
+
+	/**
+	 * Allow n more messages or digests. It does nothing if the window is
+	 * closed.
+	 */
+	public synchronized void grant(int n) {
+		if (credits < 0 || n <= 0) {
+			return;
+		}
+		credits += n;
+		notifyAll();
+	}
+
+	/**
+	 * Allow another page.
+	 */
+	public void nextPage() {
+		grant(getPageSize());
+	}
+
+	/**
+	 * Deliver everything from now on without waiting.
+	 */
+	public synchronized void close() {
+		credits = -1;
+		notifyAll();
+	}
+
+	public synchronized int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return number of credits left; -1 if the window is closed.
+	 */
+	public synchronized int getCredits() {
+		return credits;
+	}
+}
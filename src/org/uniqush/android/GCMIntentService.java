@@ -22,6 +22,7 @@ import java.util.Set;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Bundle;
 import android.util.Log;
 
 import com.google.android.gcm.GCMBaseIntentService;
@@ -33,6 +34,9 @@ public class GCMIntentService extends GCMBaseIntentService {
 
 	private static final String TAG = "GCMIntentService";
 
+	// onMessage() is only called on the IntentService's worker thread.
+	private DigestParser parser = new DigestParser();
+
 	public GCMIntentService() {
 		super();
 	}
@@ -71,55 +75,49 @@ public class GCMIntentService extends GCMBaseIntentService {
 
 	@Override
 	protected void onMessage(Context context, Intent intent) {
-		Log.i(TAG, "Received message");
-		Set<String> extras = intent.getExtras().keySet();
-		int size = 0;
-		String msgId = "";
-		String service = "";
-		String username = "";
-		String senderid = ""; // GCM Related stuff. should we consider it?
-		String sender = null;
-		String senderService = null;
+		Bundle extras = intent.getExtras();
+		if (extras == null) {
+			return;
+		}
+		DigestParser parser = this.parser;
+		if (!parser.parse(extras.getString(DigestParser.DESCRIPTOR))) {
+			// This is not a valid push notification
+			return;
+		}
+		boolean verbose = Log.isLoggable(TAG, Log.VERBOSE);
+		if (verbose) {
+			Log.v(TAG, "Received message");
+		}
 
+		Set<String> keys = extras.keySet();
 		HashMap<String, String> params = new HashMap<String, String>(
-				extras.size());
-
-		for (String s : extras) {
-			Log.i(TAG, "[" + s + "]=" + intent.getStringExtra(s));
-			if (s.equals("uq.")) {
-				String[] elems = intent.getStringExtra(s).split(",");
-				if (elems.length < 4) {
-					// This is not a valid push notification
-					return;
-				}
-				// id,size,service,username,senderService,senderUsername
-				msgId = elems[0];
-				size = Integer.parseInt(elems[1]);
-				service = elems[2];
-				username = elems[3];
-				
-				if (elems.length >= 6) {
-					senderService = elems[4];
-					sender = elems[5];
-				}
-			} else if (s.equals("from")) {
-				senderid = intent.getStringExtra(s);
-			} else {
-				params.put(s, intent.getStringExtra(s));
+				keys.size());
+		for (String s : keys) {
+			if (verbose) {
+				Log.v(TAG, "[" + s + "]=" + extras.getString(s));
+			}
+			if (!DigestParser.isReserved(s)) {
+				params.put(s, extras.getString(s));
 			}
 		}
+		String packed = extras.getString(DigestParser.PACKED);
+		if (packed != null) {
+			DigestParser.unpack(packed, params);
+		}
 
 		Intent i = new Intent(context, MessageCenterService.class);
 		i.putExtra("c", MessageCenterService.CMD_MESSAGE_DIGEST);
-		i.putExtra("params", params);
-		i.putExtra("msgId", msgId);
-		i.putExtra("service", service);
-		i.putExtra("user", username);
-		i.putExtra("size", size);
-		i.putExtra("senderid", senderid);
-		if (sender != null && !sender.equals("")) {
-			i.putExtra("sender", sender);
-			i.putExtra("senderService", senderService);
+		i.putExtra("t", Metrics.start());
+		i.putExtra("params", MessageCodec.get().encode(params));
+		i.putExtra("msgId", parser.getMsgId());
+		i.putExtra("service", parser.getService());
+		i.putExtra("user", parser.getUser());
+		i.putExtra("size", parser.getSize());
+		// GCM Related stuff. should we consider it?
+		i.putExtra("senderid", extras.getString(DigestParser.GCM_SENDER));
+		if (parser.getSender() != null) {
+			i.putExtra("sender", parser.getSender());
+			i.putExtra("senderService", parser.getSenderService());
 		}
 		context.startService(i);
 	}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Learns, for every network, how long a connection may stay idle before the
+ * NATs on the way forget it.
+ *
+ * For each network it keeps the longest idle time a connection is known to
+ * have survived (safe), and the shortest one it is known to have been
+ * dropped after (ceiling, 0 if none yet). Keepalives are sent at the
+ * candidate interval. Once a few in a row have survived it, the candidate
+ * grows: by half while there is no ceiling, then halfway to the ceiling, so
+ * the search converges on the NAT's timeout. A drop brings the candidate
+ * back to the safe interval.
+ *
+ * It only does the bookkeeping; times are in milliseconds and are passed
+ * in, so it can be run against a simulated NAT.
+ */
+class KeepalivePolicy {
+	static final long MIN_INTERVAL = 60 * 1000;
+	static final long MAX_INTERVAL = 28 * 60 * 1000;
+	static final long INITIAL_INTERVAL = 4 * 60 * 1000;
+	// The search stops once safe and ceiling are this close.
+	static final long RESOLUTION = 30 * 1000;
+	static final int SURVIVALS_TO_GROW = 3;
+
+	private static class Network {
+		long safe;
+		long ceiling;
+		long candidate;
+		int survivals;
+
+		Network(long safe, long ceiling) {
+			this.safe = safe;
+			this.ceiling = ceiling;
+			this.candidate = next(safe, ceiling);
+			this.survivals = 0;
+		}
+	}
+
+	private final HashMap<String, Network> networks;
+
+	public KeepalivePolicy() {
+		this.networks = new HashMap<String, Network>();
+	}
+
+	private static long next(long safe, long ceiling) {
+		if (ceiling == 0) {
+			if (safe < INITIAL_INTERVAL) {
+				return INITIAL_INTERVAL;
+			}
+			return Math.min(safe * 3 / 2, MAX_INTERVAL);
+		}
+		if (ceiling - safe <= RESOLUTION) {
+			return safe;
+		}
+		return (safe + ceiling) / 2;
+	}
+
+	private Network get(String network) {
+		Network n = networks.get(network);
+		if (n == null) {
+			n = new Network(MIN_INTERVAL, 0);
+			networks.put(network, n);
+		}
+		return n;
+	}
+
+	/**
+	 * @return how long a connection on the network may stay idle before a
+	 *         keepalive is sent.
+	 */
+	public synchronized long getInterval(String network) {
+		return get(network).candidate;
+	}
+
+	/**
+	 * A connection was still there after being idle for so long.
+	 */
+	public synchronized void onSurvived(String network, long idle) {
+		Network n = get(network);
+		if (n.ceiling != 0 && idle >= n.ceiling) {
+			// The NAT has become more lenient, or it is another one.
+			n.ceiling = 0;
+		}
+		if (idle > n.safe) {
+			n.safe = Math.min(idle, MAX_INTERVAL);
+		}
+		// Idle times cut short by other traffic prove little.
+		if (idle < n.candidate * 9 / 10) {
+			return;
+		}
+		if (++n.survivals >= SURVIVALS_TO_GROW) {
+			n.survivals = 0;
+			n.candidate = next(n.safe, n.ceiling);
+		}
+	}
+
+	/**
+	 * A connection was dropped after being idle for so long.
+	 */
+	public synchronized void onDropped(String network, long idle) {
+		if (idle < MIN_INTERVAL) {
+			// Not the NAT's doing.
+			return;
+		}
+		Network n = get(network);
+		if (idle <= n.safe) {
+			// The NAT has become stricter.
+			n.safe = Math.max(MIN_INTERVAL, idle - RESOLUTION);
+		}
+		if (n.ceiling == 0 || idle < n.ceiling) {
+			n.ceiling = idle;
+		}
+		n.candidate = n.safe;
+		n.survivals = 0;
+	}
+
+	/**
+	 * @return what has been learnt, as network -> "safe,ceiling".
+	 */
+	public synchronized HashMap<String, String> save() {
+		HashMap<String, String> ret = new HashMap<String, String>(
+				networks.size());
+		for (Map.Entry<String, Network> e : networks.entrySet()) {
+			ret.put(e.getKey(), e.getValue().safe + ","
+					+ e.getValue().ceiling);
+		}
+		return ret;
+	}
+
+	public synchronized void load(Map<String, String> saved) {
+		for (Map.Entry<String, String> e : saved.entrySet()) {
+			String v = e.getValue();
+			int comma = v.indexOf(',');
+			if (comma < 0) {
+				continue;
+			}
+			try {
+				long safe = Long.parseLong(v.substring(0, comma));
+				long ceiling = Long.parseLong(v.substring(comma + 1));
+				if (safe < MIN_INTERVAL || safe > MAX_INTERVAL || ceiling < 0) {
+					continue;
+				}
+				networks.put(e.getKey(), new Network(safe, ceiling));
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps the open connections from being dropped by NATs while they are idle,
+ * at the interval learnt by a KeepalivePolicy.
+ *
+ * A connection needs a keepalive only once it has been idle for the whole
+ * interval: any traffic, either way, does the job. All the connections are
+ * looked after by one alarm, which wakes the device up when the first of them
+ * is due and sends keepalives on every connection due soon after as well, so
+ * that they share the wakeup. Time is measured with the elapsed real time,
+ * which goes on while the device sleeps, as the NAT's clock does.
+ *
+ * Whether a keepalive worked is only known later, and the server does not
+ * answer it. A keepalive has survived once something is received after it, or
+ * once the connection is still open when the next keepalive is due; it has
+ * been dropped if the keepalive could not be written or the connection breaks
+ * first. A NAT which has forgotten the connection usually drops its packets
+ * silently and TCP may take many minutes to give up, so the second rule can be
+ * wrong for a while; but the connection does break in the end, and the
+ * keepalive pending then counts as dropped, which brings the interval down
+ * again.
+ */
+class KeepaliveScheduler {
+	public interface Callback {
+		/**
+		 * @return the open connections.
+		 */
+		public List<Connection> getConnections();
+
+		/**
+		 * @return a name for the network the device is on.
+		 */
+		public String getNetwork();
+
+		/**
+		 * Send a keepalive on the connection, on another thread. It calls
+		 * onProbeFailed() if it cannot.
+		 */
+		public void probe(Connection c);
+
+		/**
+		 * Wake the device up at the time, as now(), and call onAlarm(). It
+		 * replaces the alarm set before.
+		 */
+		public void setAlarm(long at);
+
+		public void cancelAlarm();
+	}
+
+	// Connections due within this part of the interval are done together.
+	private static final int BATCH_FRACTION = 5;
+	private static final long MIN_DELAY = 1000;
+
+	private static class Probe {
+		String network;
+		long sentAt;
+		long idle;
+	}
+
+	private final Executor executor;
+	private final KeepalivePolicy policy;
+	private final Callback callback;
+	// The oldest keepalive on each connection whose outcome is not known
+	// yet.
+	private final WeakHashMap<Connection, Probe> pending;
+	// When the alarm goes off; 0 if there is none.
+	private long alarmAt;
+	private boolean stopped;
+
+	private final Runnable task = new Runnable() {
+		@Override
+		public void run() {
+			runDue();
+		}
+	};
+
+	/**
+	 * @param executor
+	 *            runs the work of an alarm, off the thread which reports it.
+	 */
+	public KeepaliveScheduler(Executor executor, KeepalivePolicy policy,
+			Callback callback) {
+		this.executor = executor;
+		this.policy = policy;
+		this.callback = callback;
+		this.pending = new WeakHashMap<Connection, Probe>();
+		this.alarmAt = 0;
+		this.stopped = false;
+	}
+
+	static long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * @return when there was last traffic on the connection, either way.
+	 */
+	private static long lastActivity(Connection c) {
+		return Math.max(c.getLastActivity(), lastReceived(c));
+	}
+
+	private static long lastReceived(Connection c) {
+		if (c.getHandler() instanceof ErrorHandler) {
+			return ((ErrorHandler) c.getHandler()).getLastReceived();
+		}
+		return 0;
+	}
+
+	public synchronized void start() {
+		stopped = false;
+		if (alarmAt == 0) {
+			schedule(policy.getInterval(callback.getNetwork()));
+		}
+	}
+
+	public synchronized void stop() {
+		stopped = true;
+		if (alarmAt != 0) {
+			alarmAt = 0;
+			callback.cancelAlarm();
+		}
+	}
+
+	private void schedule(long delay) {
+		alarmAt = now() + Math.max(delay, MIN_DELAY);
+		callback.setAlarm(alarmAt);
+	}
+
+	/**
+	 * The alarm has gone off.
+	 */
+	public void onAlarm() {
+		synchronized (this) {
+			if (stopped) {
+				return;
+			}
+			alarmAt = 0;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// The service is going away.
+		}
+	}
+
+	private void runDue() {
+		String network = callback.getNetwork();
+		long interval = policy.getInterval(network);
+		long now = now();
+		long batch = now + interval / BATCH_FRACTION;
+		long next = now + interval;
+		Metrics.KEEPALIVE_INTERVAL.record(interval);
+
+		synchronized (this) {
+			// What happened to the keepalives sent before. Those on an open
+			// connection which is not due again yet wait.
+			Iterator<Map.Entry<Connection, Probe>> it = pending.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<Connection, Probe> e = it.next();
+				Probe p = e.getValue();
+				if (lastReceived(e.getKey()) > p.sentAt) {
+					it.remove();
+					policy.onSurvived(p.network, p.idle);
+				} else if (!e.getKey().isAlive()) {
+					it.remove();
+					dropped(p);
+				} else if (p.sentAt + interval <= batch) {
+					// Still open a whole interval later.
+					it.remove();
+					policy.onSurvived(p.network, p.idle);
+				}
+			}
+		}
+
+		List<Connection> conns = callback.getConnections();
+		for (Connection c : conns) {
+			if (c.getState() != Connection.READY) {
+				continue;
+			}
+			long last = lastActivity(c);
+			long due = last + interval;
+			if (due > batch) {
+				next = Math.min(next, due);
+				continue;
+			}
+			Probe p = new Probe();
+			p.network = network;
+			p.sentAt = now;
+			p.idle = now - last;
+			synchronized (this) {
+				if (!pending.containsKey(c)) {
+					pending.put(c, p);
+				}
+			}
+			Metrics.KEEPALIVES.inc();
+			callback.probe(c);
+		}
+
+		synchronized (this) {
+			if (stopped || alarmAt != 0
+					|| (conns.isEmpty() && pending.isEmpty())) {
+				// start() again once there is a connection.
+				return;
+			}
+			schedule(next - now);
+		}
+	}
+
+	private void dropped(Probe p) {
+		Metrics.KEEPALIVES_DROPPED.inc();
+		policy.onDropped(p.network, p.idle);
+	}
+
+	/**
+	 * The keepalive could not be written: the connection has been dropped.
+	 */
+	public void onProbeFailed(Connection c) {
+		Probe p;
+		synchronized (this) {
+			p = pending.remove(c);
+		}
+		if (p != null) {
+			dropped(p);
+		}
+	}
+
+	/**
+	 * The connection is being stopped. If it has broken with a keepalive
+	 * still unanswered, the keepalive was dropped.
+	 * 
+	 * @param broken
+	 *            true if the connection has failed, rather than being closed
+	 *            on purpose.
+	 */
+	public void forget(Connection c, boolean broken) {
+		Probe p;
+		synchronized (this) {
+			p = pending.remove(c);
+		}
+		if (p == null) {
+			return;
+		}
+		if (lastReceived(c) > p.sentAt) {
+			policy.onSurvived(p.network, p.idle);
+		} else if ((broken || !c.isAlive())
+				&& p.network.equals(callback.getNetwork())) {
+			// On another network, it may have been the switch.
+			dropped(p);
+		}
+	}
+}
@@ -1,13 +1,17 @@
 package org.uniqush.android;
 
+import java.util.Collection;
 import java.util.Date;
 
+import javax.net.ssl.SSLContext;
+
 import org.uniqush.client.Message;
 
 import com.google.android.gcm.GCMRegistrar;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.util.Log;
 
 public class MessageCenter {
@@ -23,6 +27,10 @@ public class MessageCenter {
 	 * 2. It must have a constructor which takes one and only one parameter, a
 	 * Context
 	 * 
+	 * The library creates only one instance of the class per process, using
+	 * the application context. Calling init() with a different class name
+	 * replaces that instance.
+	 * 
 	 * Exceptions may be thrown if the class does not satisfy the requirement
 	 * mentioned above.
 	 * 
@@ -39,6 +47,268 @@ public class MessageCenter {
 		ResourceManager.setUserInfoProvider(context, userInfoProviderClassName);
 	}
 
+	/**
+	 * Configure the thread pool which executes the commands (connect, send,
+	 * request, etc.) in the background. It takes effect the next time the
+	 * service starts.
+	 * 
+	 * Commands sent to the same destination are always executed in the order
+	 * they are issued. If there are more than queueCapacity pending commands,
+	 * a new command will be rejected and a RejectedExecutionException will be
+	 * reported through the handler's onResult() (or onError()) method.
+	 * 
+	 * @param context
+	 * @param workers
+	 *            Number of worker threads. Default: 2.
+	 * @param queueCapacity
+	 *            Max number of pending commands. Default: 256.
+	 * @throws IllegalArgumentException
+	 *             when any argument is not positive.
+	 */
+	public static void setCommandExecutorConfig(Context context, int workers,
+			int queueCapacity) {
+		if (workers <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException(
+					"workers and queueCapacity should be positive");
+		}
+		ResourceManager.setCommandExecutorConfig(context, workers,
+				queueCapacity);
+	}
+
+	/**
+	 * Configure how outbound messages are batched. Messages sent by
+	 * sendMessageToServer() and sendMessageToUser() are collected for at most
+	 * windowMillis milliseconds, or until there are maxBatchSize of them, and
+	 * then sent in one go. Each message still has its own result. It takes
+	 * effect the next time the service starts.
+	 * 
+	 * @param context
+	 * @param windowMillis
+	 *            > 0: The time window in milliseconds. Default: 10.
+	 * 
+	 *            <= 0: Do not batch messages.
+	 * @param maxBatchSize
+	 *            Max number of messages in one batch. Default: 32.
+	 */
+	public static void setSendBatchConfig(Context context, int windowMillis,
+			int maxBatchSize) {
+		ResourceManager.setSendBatchConfig(context, windowMillis, maxBatchSize);
+	}
+
+	/**
+	 * Turn on prefetching. When a digest of a message arrives through GCM and
+	 * the message is not larger than maxSize, the library starts connecting
+	 * to the server and fetching the message right away, instead of waiting
+	 * for the app to call requestMessages().
+	 * 
+	 * Only messages to the current user (as returned by
+	 * UserInfoProvider.getConnectionInfo()) are prefetched. It takes effect
+	 * the next time the service starts.
+	 * 
+	 * @param context
+	 * @param maxSize
+	 *            > 0: Prefetch messages not larger than maxSize bytes.
+	 * 
+	 *            <= 0: Do not prefetch. This is the default.
+	 * @param deliverDirectly
+	 *            If true, the digest is not delivered; the message itself is
+	 *            delivered through onMessageFromServer() or
+	 *            onMessageFromUser() once it arrives. The digest is still
+	 *            delivered if the message cannot be fetched, or has not
+	 *            arrived within a minute. If false, the digest is delivered
+	 *            as usual, and the message is held until the app calls
+	 *            requestMessages() with its id, which is then answered
+	 *            without a round trip.
+	 */
+	public static void setPrefetchConfig(Context context, int maxSize,
+			boolean deliverDirectly) {
+		ResourceManager.setPrefetchConfig(context, maxSize, deliverDirectly);
+	}
+
+	/**
+	 * Configure the duplicate filter. The same message may reach the app as a
+	 * GCM digest, an online digest, and a full message. The library remembers
+	 * the ids of the last capacity messages and digests delivered, and drops:
+	 * a message whose id has been delivered as a message; a digest whose id
+	 * has been delivered as a digest or a message. This includes a message
+	 * fetched again on purpose with requestMessage(), so turn it on only if
+	 * the app does not do that. It takes effect the next time the service
+	 * starts.
+	 * 
+	 * @param context
+	 * @param capacity
+	 *            > 0: Number of ids to remember, e.g. 1024.
+	 * 
+	 *            <= 0: Do not filter duplicates. This is the default.
+	 * @param persistent
+	 *            If true, the ids are saved a few seconds after they are
+	 *            seen, and loaded when the service starts again. Default:
+	 *            false.
+	 */
+	public static void setDedupConfig(Context context, int capacity,
+			boolean persistent) {
+		ResourceManager.setDedupConfig(context, capacity, persistent);
+	}
+
+	/**
+	 * Record the library's metrics and report them to exporter. Nothing is
+	 * recorded until this is called. The exporter lives in this process only,
+	 * so set it again whenever the process starts, e.g. in
+	 * Application.onCreate().
+	 * 
+	 * @param exporter
+	 *            null to stop recording.
+	 * @param intervalMillis
+	 *            > 0: report every intervalMillis milliseconds, on a background
+	 *            thread.
+	 * 
+	 *            <= 0: report only when exportMetrics() is called.
+	 */
+	public static void setMetricsExporter(MetricsExporter exporter,
+			int intervalMillis) {
+		Metrics.setExporter(exporter, intervalMillis);
+	}
+
+	/**
+	 * Report the metrics to the exporter now, on the calling thread.
+	 */
+	public static void exportMetrics() {
+		Metrics.export();
+	}
+
+	/**
+	 * Configure how many connections are kept open. The connection for the
+	 * current account is always open; with maxConnections > 1, the
+	 * connections of the accounts used before stay open too, so that
+	 * switching back to them (by changing what
+	 * UserInfoProvider.getConnectionInfo() returns) needs no new connection.
+	 * Meanwhile they keep receiving their accounts' messages. It takes effect
+	 * the next time the service starts.
+	 * 
+	 * @param context
+	 * @param maxConnections
+	 *            Max number of open connections. Default: 1, i.e. a
+	 *            connection is closed as soon as another account is used.
+	 * @param idleTimeoutSeconds
+	 *            A connection other than the current one is closed once it
+	 *            has not been used for this long. Default: 300.
+	 */
+	public static void setConnectionPoolConfig(Context context,
+			int maxConnections, int idleTimeoutSeconds) {
+		ResourceManager.setConnectionPoolConfig(context, maxConnections,
+				idleTimeoutSeconds);
+	}
+
+	/**
+	 * Take in the messages fetched by requestMessages(context, id, since) a
+	 * page at a time, so that a large backlog (e.g. after a week offline)
+	 * streams in with bounded memory instead of all at once.
+	 * 
+	 * It only applies to a message handler which implements
+	 * {@link FetchListener}: after every pageSize messages and digests, the
+	 * handler's onPageDelivered() is called, and nothing more is delivered
+	 * until the handler asks for the next page through the given
+	 * {@link FetchWindow}. Nothing else is received on the connection
+	 * meanwhile, so if the handler has not asked within a minute, the rest is
+	 * delivered at once. It takes effect the next time the service starts.
+	 * 
+	 * @param context
+	 * @param pageSize
+	 *            > 0: Number of messages and digests in a page.
+	 * 
+	 *            <= 0: Deliver everything at once. This is the default.
+	 */
+	public static void setFetchPageSize(Context context, int pageSize) {
+		ResourceManager.setFetchPageSize(context, pageSize);
+	}
+
+	/**
+	 * Let the library pick the compress threshold (see ConnectionInfo) from
+	 * how well the messages received actually compress. Every few messages,
+	 * one is compressed on the side, and the threshold is moved to the
+	 * smallest size from which compression shrinks the messages enough for
+	 * the time it takes; if it never does, e.g. for already encoded media,
+	 * the server is asked not to compress at all. The decisions show up in
+	 * the compression.* metrics.
+	 * 
+	 * It does not turn compression on if ConnectionInfo's compress threshold
+	 * is <= 0. It takes effect the next time the service starts. Default:
+	 * off.
+	 */
+	public static void setAdaptiveCompression(Context context, boolean enabled) {
+		ResourceManager.setAdaptiveCompression(context, enabled);
+	}
+
+	/**
+	 * Register a preset dictionary for the bodies of small messages (32 to
+	 * 4096 bytes) compressed by the sending client, which the connection's
+	 * compression leaves alone. Received messages with a "uq.z" header are
+	 * decompressed with the dictionary of that version; one with an unknown
+	 * or mismatching dictionary is delivered as it is, with its header.
+	 * 
+	 * Messages sent by this library are not compressed: the server has no
+	 * dictionary, and there is no way to know whether another user's client
+	 * has it.
+	 * 
+	 * The dictionaries are not saved; register them every time the app
+	 * starts, e.g. in Application.onCreate().
+	 * 
+	 * @param version
+	 *            > 0.
+	 * @throws IllegalArgumentException
+	 *             if version is not positive or the dictionary is empty.
+	 */
+	public static void addCompressionDictionary(int version, byte[] dictionary) {
+		CompressionDictionary.add(version, dictionary);
+	}
+
+	/**
+	 * Keep the connections from being dropped by NATs while they are idle.
+	 * After a connection has been idle for a while, something harmless is
+	 * sent on it. How long a while is learnt for each network: the library
+	 * tries longer and longer intervals until the connection gets dropped,
+	 * then settles on the longest one that was fine. Any traffic on the
+	 * connection saves the keepalive. Reading the network needs the
+	 * ACCESS_NETWORK_STATE permission; without it, every network is taken
+	 * to be the same one.
+	 * 
+	 * Keepalives are sent from an alarm which wakes the device up, so they go
+	 * on while the screen is off. Holding the device awake long enough to
+	 * send them needs the WAKE_LOCK permission, which GCM needs as well. It
+	 * takes effect the next time the service starts. Default: on.
+	 */
+	public static void setKeepalive(Context context, boolean enabled) {
+		ResourceManager.setKeepalive(context, enabled);
+	}
+
+	/**
+	 * Connect to the server over TLS. The port in ConnectionInfo has to be
+	 * the server's TLS port. Sessions are cached per server, so reconnecting,
+	 * e.g. after the network has come back, takes an abbreviated handshake.
+	 * The handshakes show up in the tls.* metrics.
+	 * 
+	 * The client library only makes plain connections, so it reaches the
+	 * server through a port on the loopback interface, open for a few
+	 * seconds while connecting. Connections to it from other apps are turned
+	 * away. From Android 10 on they cannot be told apart, so connecting fails
+	 * there rather than risk another app taking the connection; only turn TLS
+	 * on for older devices. It takes effect the next time the service starts.
+	 * Default: off.
+	 */
+	public static void setTls(Context context, boolean enabled) {
+		ResourceManager.setTls(context, enabled);
+	}
+
+	/**
+	 * Make the TLS connections with the given context, e.g. one which trusts
+	 * a private CA. null goes back to the platform's default. Keep using the
+	 * same context: the sessions to resume are cached in it. It is not
+	 * saved; set it every time the app starts.
+	 */
+	public static void setSSLContext(SSLContext context) {
+		TlsTunnel.setSharedContext(context);
+	}
+
 	private static void startService(Context context, int cmd, int id) {
 		Intent intent = new Intent(context, MessageCenterService.class);
 		intent.putExtra("c", cmd);
@@ -69,7 +339,7 @@ public class MessageCenter {
 		Intent intent = new Intent(context, MessageCenterService.class);
 		intent.putExtra("c", MessageCenterService.CMD_SEND_MSG_TO_SERVER);
 		intent.putExtra("id", id);
-		intent.putExtra("msg", msg);
+		intent.putExtra("msg", MessageCodec.get().encode(msg));
 		context.startService(intent);
 	}
 
@@ -102,7 +372,7 @@ public class MessageCenter {
 		intent.putExtra("service", service);
 		intent.putExtra("username", username);
 		intent.putExtra("ttl", ttl);
-		intent.putExtra("msg", msg);
+		intent.putExtra("msg", MessageCodec.get().encode(msg));
 		context.startService(intent);
 	}
 	
@@ -114,6 +384,22 @@ public class MessageCenter {
 		context.startService(intent);
 	}
 
+	/**
+	 * Fetch several messages at once, e.g. those of a batch of digests. They
+	 * are requested back to back instead of one round trip after another;
+	 * those which have been prefetched or delivered already are not
+	 * requested again. There is one result, under id, for the whole batch.
+	 * The messages arrive one by one through the handler.
+	 */
+	public static void requestMessages(Context context, int id,
+			Collection<String> msgIds) {
+		Intent intent = new Intent(context, MessageCenterService.class);
+		intent.putExtra("c", MessageCenterService.CMD_REQUEST_MSGS);
+		intent.putExtra("id", id);
+		intent.putExtra("mids", msgIds.toArray(new String[msgIds.size()]));
+		context.startService(intent);
+	}
+
 	public static void requestMessages(Context context, int id, Date since) {
 		Intent intent = new Intent(context, MessageCenterService.class);
 		intent.putExtra("c", MessageCenterService.CMD_REQUEST_ALL_CACHED_MSG);
@@ -122,6 +408,33 @@ public class MessageCenter {
 		context.startService(intent);
 	}
 
+	/**
+	 * @return the state of the connection with the server, one of the
+	 *         ConnectionStateListener.STATE_* constants. The app's message
+	 *         handler can implement ConnectionStateListener to be told about
+	 *         the changes.
+	 */
+	public static int getConnectionState() {
+		return ConnectionSupervisor.currentState();
+	}
+
+	/**
+	 * Bind to the service. Once bound, conn.onServiceConnected() is given a
+	 * {@link MessageCenterBinder}, which makes the same calls as this class
+	 * without going through an Intent each time. It pays off for an app which
+	 * sends many messages while it is in use.
+	 * 
+	 * @return false if the service could not be bound.
+	 */
+	public static boolean bind(Context context, ServiceConnection conn) {
+		Intent intent = new Intent(context, MessageCenterService.class);
+		return context.bindService(intent, conn, Context.BIND_AUTO_CREATE);
+	}
+
+	public static void unbind(Context context, ServiceConnection conn) {
+		context.unbindService(conn);
+	}
+
 	public static void stop(Context context, int id) {
 		Log.i(TAG, "stop: " + id);
 		Intent intent = new Intent(context, MessageCenterService.class);
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.Collection;
+import java.util.Date;
+
+import android.os.Binder;
+
+import org.uniqush.client.Message;
+
+/**
+ * The service's interface for apps bound to it with MessageCenter.bind(). It
+ * is the IBinder passed to ServiceConnection.onServiceConnected().
+ * 
+ * It does what the static methods of MessageCenter do, without an Intent for
+ * every call: the calls go straight to the service, and a Message is passed
+ * as it is, not encoded. Every call returns at once.
+ * 
+ * A result goes to the call's ResultCallback instead of the handler's
+ * onResult(). With a null callback, only errors are reported, through the
+ * handler's onError(). A callback still pending when the service is destroyed
+ * is never called.
+ */
+public class MessageCenterBinder extends Binder {
+	private MessageCenterService service;
+
+	MessageCenterBinder(MessageCenterService service) {
+		this.service = service;
+	}
+
+	public void connect(ResultCallback callback) {
+		service.connect(service.registerCallback(callback));
+	}
+
+	public void sendMessageToServer(Message msg, ResultCallback callback) {
+		service.send(new OutboundMessage(service.registerCallback(callback),
+				msg));
+	}
+
+	/**
+	 * @param ttl
+	 *            Time-to-live of the message in number of seconds.
+	 */
+	public void sendMessageToUser(String receiverService, String username,
+			Message msg, int ttl, ResultCallback callback) {
+		service.send(new OutboundMessage(service.registerCallback(callback),
+				receiverService, username, msg, ttl));
+	}
+
+	public void requestMessage(String msgId, ResultCallback callback) {
+		service.requestMessage(service.registerCallback(callback), msgId);
+	}
+
+	/**
+	 * Fetch several messages at once. The callback gets one result for the
+	 * whole batch; if it also implements MessageRequestListener, it hears
+	 * about every id as well.
+	 */
+	public void requestMessages(Collection<String> msgIds,
+			ResultCallback callback) {
+		service.requestMessages(service.registerCallback(callback), msgIds);
+	}
+
+	public void requestMessages(Date since, ResultCallback callback) {
+		service.requestMessages(service.registerCallback(callback), since);
+	}
+}
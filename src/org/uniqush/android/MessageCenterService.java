@@ -1,19 +1,36 @@
 package org.uniqush.android;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.security.auth.login.LoginException;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.util.Log;
 
 import org.uniqush.client.Message;
@@ -37,341 +54,1192 @@ public class MessageCenterService extends Service {
 	protected final static int CMD_MESSAGE_DIGEST = 11;
 	protected final static int CMD_USER_INFO_READY = 12;
 	protected final static int CMD_REGID_READY = 13;
-	protected final static int CMD_MAX_CMD_ID = 14;
+	protected final static int CMD_REQUEST_MSGS = 14;
+	protected final static int CMD_KEEPALIVE = 15;
+	protected final static int CMD_MAX_CMD_ID = 16;
+
+	// Commands in the same lane are executed in order.
+	private final static String LANE_CONNECTION = "connection";
+	private final static String LANE_CALLBACK = "callback";
+	private final static String LANE_SERVER = "server";
+	private final static String LANE_REQUEST = "request";
+	private final static String LANE_USER_PREFIX = "user:";
+	private final static String LANE_OUTBOX = "outbox";
+	private final static String LANE_KEEPALIVE = "keepalive";
+	private final static String LANE_SUBSCRIBE = "subscribe";
+
+	private final static String OUTBOX_FILE = "uniqush-outbox";
+	private final static int OUTBOX_MAX_MESSAGES = 512;
+	private final static long OUTBOX_MAX_BYTES = 1024 * 1024;
+	private final static int OUTBOX_DRAIN_BATCH = 32;
+
+	private final static int PREFETCH_CAPACITY = 64;
+	private final static long PREFETCH_TIMEOUT = 60 * 1000;
+
+	private final static String SEEN_IDS_FILE = "uniqush-seen-ids";
+
+	// Long enough to write the keepalives after the alarm woke the device up.
+	private final static long KEEPALIVE_WAKE_TIME = 10 * 1000;
+
+	// Call ids below this are handed out for result callbacks.
+	private final static int FIRST_CALLBACK_ID = -2;
 
 	private UserInfoProvider userInfoProvider;
 	private Lock userInfoProviderLock;
 
-	private MessageCenter center;
-	private ConnectionInfo currentConn;
-	private MessageHandler handler;
-	private Thread readerThread;
-	private ReadWriteLock centerLock;
+	// conn, the current connection, is only replaced with connLock held, and
+	// pool is only used with it held. Nothing does I/O with it held.
+	private volatile Connection conn;
+	final private Object connLock = new Object();
+	private ConnectionPool pool;
+	private ConnectionSupervisor supervisor;
+	private CommandExecutor executor;
+	private ScheduledExecutorService timer;
+	private ExecutorService readers;
+	private SendBatcher batcher;
+	private Outbox outbox;
+	private SubscriptionStore subscriptions;
+	private PrefetchCache prefetch;
+	private int prefetchMaxSize;
+	private boolean prefetchDeliverDirectly;
+	// null if duplicates are not filtered.
+	private SeenIdCache seen;
+	private boolean seenPersistent;
+	private int fetchPageSize;
+	private CompressionPolicy compression;
+	private KeepalivePolicy keepalivePolicy;
+	private AddressResolver resolver;
+	private boolean useTls;
+	private KeepaliveScheduler keepalive;
+	private PendingIntent keepaliveAlarm;
+	// null if the app does not hold the WAKE_LOCK permission.
+	private PowerManager.WakeLock keepaliveWakeLock;
+	private MessageCenterBinder binder;
+	private ConcurrentHashMap<Integer, ResultCallback> callbacks;
+
+	// The supervisor has been told already by the ErrorHandler.
+	private final ErrorHandler.Listener brokenListener = new ErrorHandler.Listener() {
+		@Override
+		public void onBroken(Connection c, Exception e) {
+			if (closeBroken(c, e)) {
+				Log.w(TAG, "connection broken: " + e.toString());
+				Metrics.CONNECTION_FAILURES.inc();
+			}
+		}
+	};
+	private AtomicInteger nextCallbackId;
 
 	@Override
 	public void onCreate() {
 		userInfoProviderLock = new ReentrantLock();
-		centerLock = new ReentrantReadWriteLock();
+		binder = new MessageCenterBinder(this);
+		callbacks = new ConcurrentHashMap<Integer, ResultCallback>();
+		nextCallbackId = new AtomicInteger(FIRST_CALLBACK_ID);
+		executor = new CommandExecutor(
+				ResourceManager.getCommandWorkers(this),
+				ResourceManager.getCommandQueueCapacity(this));
+		timer = Executors.newSingleThreadScheduledExecutor();
+		readers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "UniqushReader-"
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		batcher = new SendBatcher(timer,
+				ResourceManager.getSendBatchWindow(this),
+				ResourceManager.getSendBatchSize(this),
+				new SendBatcher.Flusher() {
+					@Override
+					public void flush(String lane, List<OutboundMessage> batch) {
+						submitBatch(lane, batch);
+					}
+				});
+		outbox = new Outbox(new File(getFilesDir(), OUTBOX_FILE), timer,
+				OUTBOX_MAX_MESSAGES, OUTBOX_MAX_BYTES);
+		subscriptions = new SubscriptionStore(this, timer);
+		prefetch = new PrefetchCache(PREFETCH_CAPACITY, PREFETCH_TIMEOUT,
+				timer);
+		prefetchMaxSize = ResourceManager.getPrefetchMaxSize(this);
+		prefetchDeliverDirectly = ResourceManager.getPrefetchDeliverDirectly(this);
+		seen = null;
+		int dedupCapacity = ResourceManager.getDedupCapacity(this);
+		if (dedupCapacity > 0) {
+			seen = new SeenIdCache(dedupCapacity);
+			seenPersistent = ResourceManager.getDedupPersistent(this);
+			if (seenPersistent) {
+				// A burst of messages has been handled; the process may be
+				// killed any time now.
+				final SeenIdCache s = seen;
+				executor.setIdleListener(new Runnable() {
+					@Override
+					public void run() {
+						s.flushSoon();
+					}
+				});
+			}
+		}
+		load();
+		supervisor = new ConnectionSupervisor(timer,
+				new ConnectionSupervisor.Callback() {
+					@Override
+					public void reconnect() {
+						submit(LANE_CONNECTION, -1, new Runnable() {
+							@Override
+							public void run() {
+								MessageCenterService.this.reconnect();
+							}
+						});
+					}
+
+					@Override
+					public void giveUp() {
+						org.uniqush.android.MessageCenter.stop(
+								MessageCenterService.this, 0);
+					}
+				});
+		fetchPageSize = ResourceManager.getFetchPageSize(this);
+		compression = null;
+		if (ResourceManager.getAdaptiveCompression(this)) {
+			compression = new CompressionPolicy(
+					new CompressionPolicy.Listener() {
+						@Override
+						public void onThresholdChanged(int threshold) {
+							Log.i(TAG, "compress threshold: " + threshold);
+							if (executor.isShutdown()) {
+								return;
+							}
+							// Have the server configured with it.
+							submit(LANE_CONNECTION, -1, new Runnable() {
+								@Override
+								public void run() {
+									ensureConnection();
+								}
+							});
+						}
+					});
+		}
+		pool = new ConnectionPool(ResourceManager.getConnectionPoolSize(this),
+				ResourceManager.getConnectionIdleTimeout(this) * 1000L);
+		if (pool.getMaxConnections() > 1) {
+			long period = Math.max(pool.getIdleTimeout() / 2, 1000);
+			timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIdleConnections();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		resolver = new AddressResolver();
+		useTls = ResourceManager.getTls(this);
+		keepalive = null;
+		if (ResourceManager.getKeepalive(this)) {
+			keepalivePolicy = new KeepalivePolicy();
+			keepalivePolicy.load(ResourceManager.loadKeepaliveIntervals(this));
+			Intent alarm = new Intent(this, MessageCenterService.class);
+			alarm.putExtra("c", CMD_KEEPALIVE);
+			keepaliveAlarm = PendingIntent.getService(this, CMD_KEEPALIVE,
+					alarm, PendingIntent.FLAG_UPDATE_CURRENT);
+			keepaliveWakeLock = newWakeLock();
+			keepalive = new KeepaliveScheduler(timer, keepalivePolicy,
+					new KeepaliveScheduler.Callback() {
+						@Override
+						public List<Connection> getConnections() {
+							synchronized (connLock) {
+								return pool.getAll();
+							}
+						}
+
+						@Override
+						public String getNetwork() {
+							return MessageCenterService.this.getNetwork();
+						}
+
+						@Override
+						public void probe(Connection c) {
+							sendKeepalive(c);
+						}
+
+						@Override
+						public void setAlarm(long at) {
+							AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+							if (am != null) {
+								// Inexact, so the system can batch it with
+								// other wakeups.
+								am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, at,
+										keepaliveAlarm);
+							}
+						}
+
+						@Override
+						public void cancelAlarm() {
+							AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+							if (am != null) {
+								am.cancel(keepaliveAlarm);
+							}
+						}
+					});
+		}
 		userInfoProvider = null;
-		center = null;
-		readerThread = null;
-		handler = null;
+		conn = null;
 		Log.i(TAG, "service created");
 	}
 
 	@Override
 	public void onDestroy() {
 		Log.i(TAG, "service destroyed");
-		centerLock.readLock().lock();
-		if (handler != null) {
-			handler.onServiceDestroyed();
+		Connection c = conn;
+		if (c != null && c.getAppHandler() != null) {
+			c.getHandler().onServiceDestroyed();
 		}
-		centerLock.readLock().unlock();
+		executor.shutdown();
+		// The executor is shut down, so the pending batches go to the outbox.
+		batcher.flushAll();
+		outbox.close();
+		subscriptions.flush();
+		if (seen != null && seenPersistent) {
+			seen.flush();
+		}
+		if (keepalive != null) {
+			keepalive.stop();
+			ResourceManager.saveKeepaliveIntervals(this,
+					keepalivePolicy.save());
+		}
+		timer.shutdown();
 		this.disconnect();
+		readers.shutdownNow();
+		resolver.close();
+		// Whatever they were waiting for has either been reported, or been
+		// moved to the outbox for the next time.
+		callbacks.clear();
+		if (compression != null) {
+			compression.close();
+		}
+		Metrics.export();
 	}
 
-	private void setUserInfoProvider() {
+	/**
+	 * Load what the previous process left, off the main thread. It is the
+	 * first command on the connection lane, so no connection is made from
+	 * there before it is done; the outbox makes everything else wait for its
+	 * own part.
+	 */
+	private void load() {
+		final SeenIdCache s = seenPersistent ? seen : null;
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				outbox.load();
+				if (s != null) {
+					File f = new File(getFilesDir(), SEEN_IDS_FILE);
+					s.load(f);
+					s.persistTo(f, timer);
+				}
+			}
+		};
+		try {
+			executor.execute(LANE_CONNECTION, task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+
+	private void lockUserInfoProvider() {
+		long start = Metrics.start();
 		userInfoProviderLock.lock();
+		Metrics.USER_INFO_LOCK_WAIT.since(start);
+	}
+
+	private void setUserInfoProvider() {
+		lockUserInfoProvider();
 		userInfoProvider = ResourceManager.getUserInfoProvider(this);
 		userInfoProviderLock.unlock();
 	}
 
-	private void disconnect() {
-		centerLock.writeLock().lock();
-		if (this.center != null) {
-			this.center.stop();
-			try {
-				this.readerThread.join(3000);
-			} catch (InterruptedException e) {
-				this.readerThread.stop();
-				try {
-					this.readerThread.join();
-				} catch (InterruptedException e1) {
-					// XXX what should I do here?
+	private UserInfoProvider getUserInfoProvider() {
+		lockUserInfoProvider();
+		if (this.userInfoProvider == null) {
+			this.userInfoProvider = ResourceManager.getUserInfoProvider(this);
+		}
+		UserInfoProvider uip = this.userInfoProvider;
+		userInfoProviderLock.unlock();
+		if (uip == null) {
+			Log.wtf(TAG,
+					"UserInfoProvider is missing. call MessageCenter.init() first!");
+		}
+		return uip;
+	}
+
+	/**
+	 * Report the result of a call: to its ResultCallback if it has one;
+	 * otherwise, to the handler's onResult() if callId > 0, or its onError()
+	 * if it failed.
+	 */
+	private void report(MessageHandler h, int callId, Exception e) {
+		if (callId < -1) {
+			ResultCallback cb = callbacks.remove(callId);
+			if (cb != null) {
+				if (h instanceof ErrorHandler) {
+					// The supervisor still needs to hear about I/O errors.
+					((ErrorHandler) h).onCallFinished(e);
 				}
+				cb.onResult(e);
+				return;
 			}
+		}
+		if (h == null) {
+			return;
+		}
+		if (callId > 0) {
+			h.onResult(callId, e);
+		} else if (e != null) {
+			h.onError(e);
+		}
+	}
 
-			this.center = null;
-			this.currentConn = null;
-			this.handler = null;
+	private void disconnect() {
+		supervisor.onDisconnected();
+		List<Connection> all;
+		long start = Metrics.start();
+		synchronized (connLock) {
+			Metrics.CONN_LOCK_WAIT.since(start);
+			conn = null;
+			all = pool.removeAll();
+		}
+		Exception reason = new Exception("Disconnected");
+		for (Connection c : all) {
+			stopConnection(c, reason);
 		}
-		centerLock.writeLock().unlock();
 	}
 
-	private void connect(int callId, boolean onlyReportError) {
-		Log.i(TAG, "connect with call id " + callId);
-		userInfoProviderLock.lock();
-		if (this.userInfoProvider == null) {
-			this.userInfoProvider = ResourceManager.getUserInfoProvider(this);
-			if (this.userInfoProvider == null) {
-				Log.wtf(TAG,
-						"UserInfoProvider is missing. call MessageCenter.init() first!");
-				userInfoProviderLock.unlock();
-				return;
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private void evictIdleConnections() {
+		List<Connection> idle;
+		long start = Metrics.start();
+		synchronized (connLock) {
+			Metrics.CONN_LOCK_WAIT.since(start);
+			idle = pool.evictIdle(conn, now());
+		}
+		Exception reason = new Exception("Idle");
+		for (Connection c : idle) {
+			stopConnection(c, reason);
+		}
+	}
+
+	private void reconnect() {
+		Log.i(TAG, "reconnect");
+		dropConnection(new Exception("Reconnecting"));
+		ensureConnection();
+	}
+
+	private void dropConnection(Exception reason) {
+		Connection c;
+		long start = Metrics.start();
+		synchronized (connLock) {
+			Metrics.CONN_LOCK_WAIT.since(start);
+			c = conn;
+			conn = null;
+			if (c != null) {
+				pool.remove(c);
 			}
 		}
-		UserInfoProvider uip = this.userInfoProvider;
-		userInfoProviderLock.unlock();
+		if (c != null) {
+			stopConnection(c, reason);
+		}
+	}
 
-		ConnectionInfo cinfo = uip.getConnectionInfo();
+	private void stopConnection(Connection c, Exception reason) {
+		if (keepalive != null) {
+			keepalive.forget(c, false);
+		}
+		c.close(reason);
+		c.stop();
+	}
 
-		if (cinfo == null) {
-			Log.w(TAG, "connection info is null");
+	/**
+	 * The connection could not be made or configured. Throw it away and let
+	 * the supervisor decide when to try again.
+	 */
+	private void failConnection(Connection c, Exception ex) {
+		Log.e(TAG, "Error on connection: " + ex.toString());
+		if (!closeBroken(c, ex)) {
 			return;
 		}
+		Metrics.CONNECTION_FAILURES.inc();
+		supervisor.onError(c.getGeneration(), ex);
+		report(c.getAppHandler(), -1, ex);
+	}
 
-		Log.i(TAG, "connect to " + cinfo.toString());
-		centerLock.writeLock().lock();
+	/**
+	 * Take a broken connection out of use: the messages sent from now on go
+	 * to the outbox, and the tasks waiting for it fail.
+	 * 
+	 * @return false if somebody else has closed it already.
+	 */
+	private boolean closeBroken(Connection c, Exception ex) {
+		long start = Metrics.start();
+		synchronized (connLock) {
+			Metrics.CONN_LOCK_WAIT.since(start);
+			if (conn == c) {
+				conn = null;
+			}
+			pool.remove(c);
+		}
+		if (!c.close(ex)) {
+			return false;
+		}
+		if (keepalive != null) {
+			keepalive.forget(c, true);
+		}
+		c.stop();
+		return true;
+	}
 
-		boolean subscribed = false;
-		boolean visible = true;
-		
-		if (currentConn != null) {
-			subscribed = currentConn.shouldSubscribe();
-			visible = currentConn.isVisible();
+	/**
+	 * Make sure there is a connection for the current connection info. If
+	 * there is none, or the settings have changed, the connection is made or
+	 * configured in the background. It never waits for any I/O.
+	 * 
+	 * An open connection for the connection info in the pool is reused. The
+	 * connection it replaces as the current one stays in the pool.
+	 * 
+	 * @return the connection, which may not be ready yet; or null if there is
+	 *         no connection info.
+	 */
+	private Connection ensureConnection() {
+		UserInfoProvider uip = getUserInfoProvider();
+		if (uip == null) {
+			return null;
 		}
-		if (!cinfo.equals(this.currentConn)) {
-			Exception ex = null;
-			MessageHandler msgHandler = uip.getMessageHandler(
-				cinfo.getServiceName(), cinfo.getUserName());
-			if (msgHandler == null) {
-				Log.e(TAG, "message handler is null");
-			}
-			this.center = new MessageCenter(uip);
-			try {
-				this.center
-						.connect(cinfo.getHostName(), cinfo.getPort(),
-								cinfo.getServiceName(), cinfo.getUserName(),
-								msgHandler);
-			} catch (IOException e) {
-				ex = e;
-			} catch (LoginException e) {
-				ex = e;
-			} catch (InterruptedException e) {
-				ex = e;
-			}
-			if (ex != null) {
-				Log.e(TAG, "Error on connection: " + ex.toString());
-				this.center = null;
-				centerLock.writeLock().unlock();
-				if (callId >= 0) {
-					msgHandler.onResult(callId, ex);
+		ConnectionInfo cinfo = uip.getConnectionInfo();
+		if (cinfo == null) {
+			Log.w(TAG, "connection info is null");
+			return null;
+		}
+		if (compression != null) {
+			cinfo = compression.apply(cinfo);
+		}
+
+		Connection c;
+		List<Connection> evicted = null;
+		boolean created = false;
+		long start = Metrics.start();
+		synchronized (connLock) {
+			Metrics.CONN_LOCK_WAIT.since(start);
+			c = conn;
+			if (c == null || c.getState() == Connection.DISCONNECTED
+					|| !cinfo.equals(c.getInfo())) {
+				long now = now();
+				if (c != null) {
+					pool.release(c, now);
+				}
+				c = pool.get(cinfo, now);
+				if (c != null) {
+					supervisor.resumeConnection(c.getGeneration(),
+							c.getAppHandler(), c.getState());
 				} else {
-					msgHandler.onError(ex);
+					MessageHandler msgHandler = uip.getMessageHandler(
+							cinfo.getServiceName(), cinfo.getUserName());
+					if (msgHandler == null) {
+						Log.e(TAG, "message handler is null");
+					}
+					int gen = supervisor.newConnection(msgHandler);
+					ErrorHandler eh = new ErrorHandler(supervisor, gen,
+							msgHandler, prefetch, seen, compression,
+							brokenListener);
+					c = new Connection(cinfo, new MessageCenter(uip), gen,
+							msgHandler, eh);
+					eh.setConnection(c);
+					evicted = pool.put(c, now);
+					created = true;
 				}
-				return;
+				conn = c;
 			}
-			readerThread = new Thread(this.center);
-			readerThread.start();
-			handler = new ErrorHandler(this, msgHandler);
-			Log.i(TAG, "connected");
 		}
-		if (this.handler == null) {
-			MessageHandler msgHandler = uip.getMessageHandler(
-				cinfo.getServiceName(), cinfo.getUserName());
-			if (msgHandler == null) {
-				Log.e(TAG, "message handler is null");
+		if (evicted != null) {
+			// Pushed out of the pool, or replaced by a connection to another
+			// server or account.
+			Exception reason = new Exception("Connection replaced");
+			for (Connection e : evicted) {
+				stopConnection(e, reason);
 			}
-			handler = new ErrorHandler(this, msgHandler);
 		}
-		if (cinfo.shouldReconfig(currentConn)) {
-			Exception ex = null;
-			Log.i(TAG, "should config");
-			try {
-				this.center.config(cinfo.getDigestThreshold(),
-						cinfo.getCompressThreshold(), cinfo.getDigestFields());
-			} catch (IOException e) {
-				ex = e;
-			} catch (InterruptedException e) {
-				ex = e;
-			}
-			if (ex != null) {
-				Log.e(TAG, "Error on config: " + ex.toString());
-				centerLock.writeLock().unlock();
-				if (callId >= 0) {
-					handler.onResult(callId, ex);
-				} else {
-					handler.onError(ex);
+
+		final Connection nc = c;
+		if (created) {
+			runConnectionStep(nc, new Runnable() {
+				@Override
+				public void run() {
+					establish(nc);
 				}
-				return;
+			});
+		} else if (c.reconfigure(cinfo)) {
+			runConnectionStep(nc, new Runnable() {
+				@Override
+				public void run() {
+					configure(nc);
+				}
+			});
+		}
+		return c;
+	}
+
+	private void runConnectionStep(Connection c, Runnable step) {
+		try {
+			executor.execute(LANE_CONNECTION, step);
+		} catch (RejectedExecutionException e) {
+			failConnection(c, e);
+		}
+	}
+
+	/**
+	 * CONNECTING: connect and log in.
+	 */
+	private void establish(Connection c) {
+		ConnectionInfo cinfo = c.getInfo();
+		Log.i(TAG, "connect to " + cinfo.toString());
+		supervisor.onConnecting(c.getGeneration());
+		Exception ex = null;
+		long start = Metrics.start();
+		String address = null;
+		TlsTunnel tunnel = null;
+		try {
+			address = resolver.pick(cinfo.getHostName(), cinfo.getPort());
+			String connectTo = address;
+			int port = cinfo.getPort();
+			if (useTls) {
+				tunnel = new TlsTunnel(TlsTunnel.getSharedContext(), readers);
+				port = tunnel.open(cinfo.getHostName(), address, port);
+				connectTo = "127.0.0.1";
+			}
+			c.getCenter().connect(connectTo, port, cinfo.getServiceName(),
+					cinfo.getUserName(), c.getHandler());
+			c.touch();
+			Metrics.CONNECT.since(start);
+		} catch (IOException e) {
+			if (address != null) {
+				resolver.onFailed(cinfo.getHostName(), address);
 			}
+			ex = e;
+		} catch (LoginException e) {
+			ex = e;
+		} catch (InterruptedException e) {
+			ex = e;
 		}
-		
-		currentConn = cinfo;
-		
-		if (currentConn.isVisible() != visible) {
-			Log.i(TAG, "set visibility");
-			Exception ex = null;
-			try {
-				this.center.setVisibility(currentConn.isVisible());
-			} catch (IOException e) {
-				ex = e;
-			} catch (InterruptedException e) {
-				ex = e;
+		if (ex != null) {
+			if (tunnel != null) {
+				tunnel.close();
 			}
-			
+			failConnection(c, ex);
+			return;
+		}
+		try {
+			c.setReader(readers.submit(c.getCenter()));
+		} catch (RejectedExecutionException e) {
+			// The service is shutting down.
+			failConnection(c, e);
+			return;
+		}
+		if (c.getState() == Connection.DISCONNECTED) {
+			// Dropped while we were connecting.
+			c.stop();
+			return;
+		}
+		Log.i(TAG, "connected");
+		// The queued messages go out while the settings are being sent.
+		c.setLoggedIn();
+		if (!outbox.isEmpty()) {
+			scheduleDrain();
+		}
+		configure(c);
+	}
+
+	/**
+	 * CONFIGURING: send the settings which differ from what the server has,
+	 * then run the tasks waiting for the connection and become READY.
+	 */
+	private void configure(Connection c) {
+		c.setConfiguring();
+		supervisor.onConfiguring(c.getGeneration());
+		while (true) {
+			ConnectionInfo prev = c.getApplied();
+			ConnectionInfo cinfo = c.getTarget();
+			Exception ex = applyConfig(c, prev, cinfo);
 			if (ex != null) {
-				Log.e(TAG, "Error on set visibility: " + ex.toString());
-				centerLock.writeLock().unlock();
-				if (callId >= 0) {
-					handler.onResult(callId, ex);
-				} else {
-					handler.onError(ex);
-				}
+				failConnection(c, ex);
 				return;
 			}
+			c.setApplied(cinfo);
+			int state = c.ready();
+			if (state == Connection.DISCONNECTED) {
+				return;
+			}
+			if (state == Connection.READY) {
+				break;
+			}
+			// The settings changed meanwhile. Go again.
 		}
-		if (currentConn.shouldSubscribe() != subscribed) {
-			centerLock.writeLock().unlock();
-			Log.i(TAG, "set subscription");
-			this.subscribe(callId, onlyReportError);
-			return;
+		supervisor.onConnected(c.getGeneration());
+		if (keepalive != null) {
+			keepalive.start();
+		}
+		if (!outbox.isEmpty()) {
+			scheduleDrain();
 		}
-		centerLock.writeLock().unlock();
 	}
 
-	private void subscribe(int callId, boolean onlyReportError) {
-		centerLock.readLock().lock();
-		if (center == null) {
-			return;
+	private Exception applyConfig(Connection c, ConnectionInfo prev,
+			ConnectionInfo cinfo) {
+		boolean subscribed = false;
+		boolean visible = true;
+		if (prev != null) {
+			subscribed = prev.shouldSubscribe();
+			visible = prev.isVisible();
+		}
+		try {
+			if (cinfo.shouldReconfig(prev)) {
+				Log.i(TAG, "should config");
+				long start = Metrics.start();
+				c.getCenter().config(cinfo.getDigestThreshold(),
+						cinfo.getCompressThreshold(), cinfo.getDigestFields());
+				Metrics.CONFIG.since(start);
+			}
+			if (cinfo.isVisible() != visible) {
+				Log.i(TAG, "set visibility");
+				long start = Metrics.start();
+				c.getCenter().setVisibility(cinfo.isVisible());
+				Metrics.VISIBILITY.since(start);
+			}
+		} catch (IOException e) {
+			return e;
+		} catch (InterruptedException e) {
+			return e;
+		}
+		if (cinfo.shouldSubscribe() != subscribed) {
+			Log.i(TAG, "set subscription");
+			scheduleSubscribe(c, cinfo);
 		}
+		c.touch();
+		return null;
+	}
+
+	/**
+	 * Subscribe in the background, so that the connection becomes READY
+	 * without waiting for it. The subscription is remembered across
+	 * connections, so it is usually a no-op on a reconnect.
+	 */
+	private void scheduleSubscribe(final Connection c, final ConnectionInfo cinfo) {
+		submit(LANE_SUBSCRIBE, -1, new Runnable() {
+			@Override
+			public void run() {
+				if (c.getState() != Connection.DISCONNECTED) {
+					subscribe(c, cinfo);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Subscribe or unsubscribe according to cinfo. Errors are reported through
+	 * the connection's handler.
+	 */
+	private void subscribe(Connection c, ConnectionInfo cinfo) {
 		String regid = this.getRegId();
 		if (regid == null || regid.length() == 0) {
 			// We dot not have the registration id. Wait for it.
-			centerLock.readLock().unlock();
 			return;
 		}
 
-		if (center == null || handler == null || currentConn == null) {
-			centerLock.readLock().unlock();
-			Log.w(TAG, "regid is ready but the message center is not.");
-			return;
-		}
-		MessageHandler h = handler;
-		String service = this.currentConn.getServiceName();
-		String username = this.currentConn.getUserName();
+		String service = cinfo.getServiceName();
+		String username = cinfo.getUserName();
 		HashMap<String, String> params = new HashMap<String, String>(3);
 		params.put("pushservicetype", "gcm");
 		params.put("service", service);
 		params.put("subscriber", username);
 		params.put("regid", regid);
-		if (currentConn.shouldSubscribe()
-				&& !ResourceManager.subscribed(this, service, username)) {
-			// should subscribe.
-			try {
-				center.subscribe(params);
-			} catch (Exception e) {
-				centerLock.readLock().unlock();
-				if (callId >= 0) {
-					h.onResult(callId, e);
-				} else {
-					h.onError(e);
-				}
+		try {
+			if (cinfo.shouldSubscribe()
+					&& !subscriptions.isSubscribed(service, username)) {
+				// should subscribe.
+				c.getCenter().subscribe(params);
+				subscriptions.setSubscribed(service, username, true);
+			} else if (!cinfo.shouldSubscribe()
+					&& subscriptions.isSubscribed(service, username)) {
+				// should unsubscribe.
+				c.getCenter().unsubscribe(params);
+				subscriptions.setSubscribed(service, username, false);
+			}
+		} catch (Exception e) {
+			report(c.getHandler(), -1, e);
+		}
+	}
+
+	abstract class MessageCenterOpt implements Connection.Task {
+		private int callId;
+		private long start;
+
+		abstract protected void opt(MessageCenter center)
+				throws InterruptedException, IOException;
+
+		public void execute(int callId) {
+			this.callId = callId;
+			this.start = Metrics.start();
+			Connection c = ensureConnection();
+			if (c == null) {
+				fail(new Exception("Not ready"));
 				return;
 			}
-			ResourceManager.setSubscribed(this, service, username, true);
+			c.runWhenReady(this);
+		}
 
-		} else if (!currentConn.shouldSubscribe()
-				&& ResourceManager.subscribed(this, service, username)) {
-			// should unsubscribe.
+		@Override
+		public void run(Connection c) {
+			MessageHandler h = c.getHandler();
 			try {
-				center.unsubscribe(params);
-			} catch (Exception e) {
-				centerLock.readLock().unlock();
-				if (callId > 0) {
-					h.onResult(callId, e);
-				} else {
-					h.onError(e);
-				}
+				this.opt(c.getCenter());
+				c.touch();
+			} catch (IOException e) {
+				report(h, callId, e);
+				return;
+			} catch (InterruptedException e) {
+				report(h, callId, e);
 				return;
 			}
-			ResourceManager.setSubscribed(this, service, username, false);
+			// From the request to the result, including the wait for the
+			// connection.
+			Metrics.REQUEST_LATENCY.since(start);
+			report(h, callId, null);
 		}
-		centerLock.readLock().unlock();
 
-		if (!onlyReportError && callId > 0 && h != null) {
-			h.onResult(callId, null);
+		@Override
+		public void fail(Exception e) {
+			// Not through ErrorHandler: the connection has already been dealt
+			// with.
+			report(getAppHandler(), callId, e);
 		}
 	}
 
-	abstract class MessageCenterOpt {
-		abstract protected void opt() throws InterruptedException, IOException;
+	private static void send(MessageCenter center, OutboundMessage m)
+			throws InterruptedException, IOException {
+		long start = Metrics.start();
+		// Sent as they are: there is no telling whether the other end has the
+		// dictionary.
+		if (m.isToServer()) {
+			center.sendMessageToServer(m.getMessage());
+		} else {
+			center.sendMessageToUser(m.getService(), m.getUserName(),
+					m.getMessage(), m.getTtl());
+		}
+		Metrics.SEND_LATENCY.since(start);
+	}
 
-		public void execute(int callId) {
-			connect(callId, true);
-			centerLock.readLock().lock();
-			MessageHandler h = handler;
-			if (center == null) {
-				centerLock.readLock().unlock();
-				if (callId > 0 && h != null) {
-					h.onResult(callId, new Exception("Not ready"));
-				} else if (h != null) {
-					h.onError(new Exception("Not ready"));
-				}
-				return;
+	private void sendBatch(List<OutboundMessage> batch) {
+		Connection c = ensureConnection();
+		if (c == null || !c.canSend() || !outbox.isEmpty()) {
+			// Not logged in yet, or older messages are still waiting. Either
+			// way, queue them behind the older ones. They are sent once the
+			// connection has logged in.
+			queueInOutbox(batch);
+			if (c != null && c.canSend()) {
+				scheduleDrain();
 			}
+			return;
+		}
 
+		// One pass over the connection for the whole batch. Every message
+		// still gets its own result. Once a message fails, the ones after it
+		// would not get through either, or would overtake it; from that one
+		// on, they go to the outbox and are retried after the next
+		// connection, like the outbox's own.
+		Metrics.SEND_BATCH_SIZE.record(batch.size());
+		MessageCenter center = c.getCenter();
+		int sent = 0;
+		Exception ex = null;
+		for (OutboundMessage m : batch) {
 			try {
-				this.opt();
+				send(center, m);
+				c.sent();
 			} catch (IOException e) {
-				centerLock.readLock().unlock();
-				if (callId > 0 && h != null) {
-					h.onResult(callId, e);
-				} else if (h != null) {
-					h.onError(e);
+				ex = e;
+				break;
+			} catch (InterruptedException e) {
+				ex = e;
+				break;
+			}
+			sent++;
+		}
+		c.touch();
+
+		MessageHandler h = c.getHandler();
+		for (int i = 0; i < sent; i++) {
+			report(h, batch.get(i).getCallId(), null);
+		}
+		if (ex != null) {
+			Log.w(TAG, "Error on sending batch: " + ex.toString());
+			queueInOutbox(batch.subList(sent, batch.size()));
+		}
+	}
+
+	private void queueInOutbox(List<OutboundMessage> batch) {
+		MessageHandler h = null;
+		for (OutboundMessage m : batch) {
+			if (outbox.offer(m)) {
+				continue;
+			}
+			if (h == null) {
+				h = getAppHandler();
+			}
+			report(h, m.getCallId(), new Exception("Outbox is full"));
+		}
+	}
+
+	private void scheduleDrain() {
+		submit(LANE_OUTBOX, -1, new Runnable() {
+			@Override
+			public void run() {
+				drainOutbox();
+			}
+		});
+	}
+
+	/**
+	 * Send the messages in the outbox, in order, until either the outbox is
+	 * empty or a message fails. A failed message stays in the outbox and will
+	 * be retried after the next connection.
+	 */
+	private void drainOutbox() {
+		Connection c = ensureConnection();
+		if (c == null || !c.canSend()) {
+			// It will be drained once the connection has logged in.
+			return;
+		}
+		MessageCenter center = c.getCenter();
+		MessageHandler h = c.getHandler();
+		while (true) {
+			List<OutboundMessage> batch = outbox.peek(OUTBOX_DRAIN_BATCH);
+			if (batch.isEmpty()) {
+				return;
+			}
+			int sent = 0;
+			Exception ex = null;
+			for (OutboundMessage m : batch) {
+				try {
+					send(center, m);
+					c.sent();
+				} catch (IOException e) {
+					ex = e;
+					break;
+				} catch (InterruptedException e) {
+					ex = e;
+					break;
 				}
+				sent++;
+			}
+			outbox.remove(sent);
+			c.touch();
+
+			for (int i = 0; i < sent; i++) {
+				report(h, batch.get(i).getCallId(), null);
+			}
+			if (ex != null) {
+				Log.w(TAG, "Error on draining outbox: " + ex.toString());
 				return;
-			} catch (InterruptedException e) {
-				centerLock.readLock().unlock();
-				if (callId > 0 && h != null) {
-					h.onResult(callId, e);
-				} else if (h != null) {
-					h.onError(e);
+			}
+		}
+	}
+
+	private void submitBatch(String lane, final List<OutboundMessage> batch) {
+		try {
+			executor.execute(lane, new Runnable() {
+				@Override
+				public void run() {
+					sendBatch(batch);
 				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (executor.isShutdown()) {
+				// The service is going away. Keep them for the next time.
+				queueInOutbox(batch);
 				return;
 			}
-			centerLock.readLock().unlock();
-			if (callId > 0 && h != null) {
-				h.onResult(callId, null);
+			Log.w(TAG, "batch rejected: " + e.getMessage());
+			MessageHandler h = getAppHandler();
+			for (OutboundMessage m : batch) {
+				report(h, m.getCallId(), e);
 			}
 		}
 	}
 
-	private void sendMessageToServer(int callId, final Message msg) {
+	private void requestSingleMessage(final int callId, final String mid) {
+		PrefetchCache.Held held = prefetch.take(mid);
+		if (held != null) {
+			deliverHeld(held);
+			report(getAppHandler(), callId, null);
+			return;
+		}
+		if (prefetch.deliverOnArrival(mid)) {
+			// Already on its way.
+			report(getAppHandler(), callId, null);
+			return;
+		}
 		new MessageCenterOpt() {
-			protected void opt() throws InterruptedException, IOException {
-				center.sendMessageToServer(msg);
+			protected void opt(MessageCenter center)
+					throws InterruptedException, IOException {
+				center.requestMessage(mid);
 			}
 		}.execute(callId);
 	}
 
-	private void sendMessageToUser(final int callId, final String service,
-			final String username, final Message msg, final int ttl) {
+	/**
+	 * Request the messages back to back, in one task, instead of one round
+	 * trip after another. Those which have been fetched or delivered already
+	 * are not requested again.
+	 */
+	private void requestMessageBatch(final int callId,
+			Collection<String> mids) {
+		final List<String> pending = new ArrayList<String>(mids.size());
+		for (String mid : new LinkedHashSet<String>(mids)) {
+			if (mid == null || mid.length() == 0) {
+				reportRequested(callId, mid, new IllegalArgumentException(
+						"Empty message id"));
+				continue;
+			}
+			PrefetchCache.Held held = prefetch.take(mid);
+			if (held != null) {
+				deliverHeld(held);
+			} else if (!prefetch.deliverOnArrival(mid)
+					&& (seen == null || !seen.isDelivered(mid))) {
+				pending.add(mid);
+				continue;
+			}
+			reportRequested(callId, mid, null);
+		}
+		if (pending.isEmpty()) {
+			report(getAppHandler(), callId, null);
+			return;
+		}
+		Metrics.REQUEST_BATCH_SIZE.record(pending.size());
 		new MessageCenterOpt() {
-			protected void opt() throws InterruptedException, IOException {
-				center.sendMessageToUser(service, username, msg, ttl);
+			private int requested = 0;
+
+			protected void opt(MessageCenter center)
+					throws InterruptedException, IOException {
+				try {
+					for (String mid : pending) {
+						center.requestMessage(mid);
+						requested++;
+					}
+				} catch (IOException e) {
+					reportPending(e);
+					throw e;
+				} catch (InterruptedException e) {
+					reportPending(e);
+					throw e;
+				}
+				reportPending(null);
+			}
+
+			@Override
+			public void fail(Exception e) {
+				reportPending(e);
+				super.fail(e);
+			}
+
+			private void reportPending(Exception e) {
+				for (int i = 0; i < pending.size(); i++) {
+					reportRequested(callId, pending.get(i),
+							i < requested ? null : e);
+				}
 			}
 		}.execute(callId);
 	}
 
-	private void requestSingleMessage(final int callId, final String mid) {
-		new MessageCenterOpt() {
-			protected void opt() throws InterruptedException, IOException {
-				center.requestMessage(mid);
+	/**
+	 * Tell a MessageRequestListener about one id of a batch. It has to be
+	 * called before the batch's result is reported.
+	 */
+	private void reportRequested(int callId, String mid, Exception e) {
+		if (callId < -1) {
+			ResultCallback cb = callbacks.get(callId);
+			if (cb instanceof MessageRequestListener) {
+				((MessageRequestListener) cb).onMessageRequested(mid, e);
 			}
-		}.execute(callId);
+		}
+	}
+
+	private void deliverHeld(PrefetchCache.Held m) {
+		UserInfoProvider uip = getUserInfoProvider();
+		if (uip == null) {
+			return;
+		}
+		MessageHandler h = uip.getMessageHandler(m.dstService, m.dstUser);
+		if (h == null) {
+			return;
+		}
+		if (seen != null && !seen.onMessage(m.id)) {
+			return;
+		}
+		if (m.srcService == null) {
+			h.onMessageFromServer(m.dstService, m.dstUser, m.id, m.msg);
+		} else {
+			h.onMessageFromUser(m.dstService, m.dstUser, m.srcService,
+					m.srcUser, m.id, m.msg);
+		}
+	}
+
+	/**
+	 * Fetch the message ahead of the app's request. If it cannot be fetched,
+	 * the fallback given to the prefetch cache, if any, runs.
+	 */
+	private void prefetchMessage(final String mid) {
+		Connection.Task task = new Connection.Task() {
+			@Override
+			public void run(Connection c) {
+				Exception ex = null;
+				try {
+					c.getCenter().requestMessage(mid);
+					c.touch();
+				} catch (IOException e) {
+					ex = e;
+				} catch (InterruptedException e) {
+					ex = e;
+				}
+				if (ex != null) {
+					report(c.getHandler(), -1, ex);
+					fail(ex);
+				}
+			}
+
+			@Override
+			public void fail(Exception e) {
+				Log.w(TAG, "Error on prefetching " + mid + ": " + e.toString());
+				prefetch.forget(mid);
+			}
+		};
+		Connection c = ensureConnection();
+		if (c == null) {
+			task.fail(new Exception("Not ready"));
+			return;
+		}
+		c.runWhenReady(task);
 	}
 
-	private void requestMessages(final int callId, final Date since) {
+	private void requestAllSince(final int callId, final Date since) {
 		new MessageCenterOpt() {
-			protected void opt() throws InterruptedException, IOException {
+			@Override
+			public void run(Connection c) {
+				if (fetchPageSize > 0
+						&& c.getHandler() instanceof ErrorHandler) {
+					FetchWindow w = ((ErrorHandler) c.getHandler())
+							.getFetchWindow();
+					if (w != null) {
+						w.open(fetchPageSize);
+					}
+				}
+				super.run(c);
+			}
+
+			protected void opt(MessageCenter center)
+					throws InterruptedException, IOException {
 				center.requestAllSince(since);
 			}
 		}.execute(callId);
 	}
 
+	/**
+	 * Send something harmless on an idle connection: the visibility it already
+	 * has.
+	 */
+	private void sendKeepalive(final Connection c) {
+		try {
+			executor.execute(LANE_KEEPALIVE, new Runnable() {
+				@Override
+				public void run() {
+					ConnectionInfo applied = c.getApplied();
+					if (c.getState() != Connection.READY || applied == null) {
+						return;
+					}
+					Exception ex = null;
+					try {
+						c.getCenter().setVisibility(applied.isVisible());
+						c.touch();
+					} catch (IOException e) {
+						ex = e;
+					} catch (InterruptedException e) {
+						ex = e;
+					}
+					if (ex != null) {
+						keepalive.onProbeFailed(c);
+						failConnection(c, ex);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "keepalive rejected: " + e.getMessage());
+		}
+	}
+
+	private PowerManager.WakeLock newWakeLock() {
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		if (pm == null) {
+			return null;
+		}
+		PowerManager.WakeLock l = pm.newWakeLock(
+				PowerManager.PARTIAL_WAKE_LOCK, TAG);
+		l.setReferenceCounted(false);
+		return l;
+	}
+
+	/**
+	 * The keepalive alarm went off. Keep the device awake until the
+	 * keepalives have been written.
+	 */
+	private void onKeepaliveAlarm() {
+		if (keepalive == null) {
+			return;
+		}
+		if (keepaliveWakeLock != null) {
+			try {
+				keepaliveWakeLock.acquire(KEEPALIVE_WAKE_TIME);
+			} catch (SecurityException e) {
+				Log.w(TAG, "no WAKE_LOCK permission; keepalives may wait for "
+						+ "the device to wake up");
+				keepaliveWakeLock = null;
+			}
+		}
+		keepalive.onAlarm();
+	}
+
+	/**
+	 * @return a name for the network the device is on, for learning its
+	 *         keepalive interval.
+	 */
+	private String getNetwork() {
+		try {
+			ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = cm == null ? null : cm.getActiveNetworkInfo();
+			if (info != null) {
+				String extra = info.getExtraInfo();
+				if (extra == null) {
+					return info.getTypeName();
+				}
+				return info.getTypeName() + ":" + extra;
+			}
+		} catch (SecurityException e) {
+			// No ACCESS_NETWORK_STATE permission.
+		}
+		return "default";
+	}
+
 	private String getRegId() {
-		userInfoProviderLock.lock();
+		lockUserInfoProvider();
 		String regId = GCMRegistrar.getRegistrationId(this);
 
 		if (regId.length() == 0) {
@@ -385,7 +1253,224 @@ public class MessageCenterService extends Service {
 
 	@Override
 	public IBinder onBind(Intent arg0) {
-		// TODO Auto-generated method stub
+		return binder;
+	}
+
+	/**
+	 * @return the call id under which the result goes to cb; -1 if cb is
+	 *         null.
+	 */
+	int registerCallback(ResultCallback cb) {
+		if (cb == null) {
+			return -1;
+		}
+		while (true) {
+			int id = nextCallbackId.getAndDecrement();
+			if (id > FIRST_CALLBACK_ID) {
+				// Wrapped around.
+				nextCallbackId.compareAndSet(id - 1, FIRST_CALLBACK_ID);
+				continue;
+			}
+			if (callbacks.putIfAbsent(id, cb) == null) {
+				return id;
+			}
+		}
+	}
+
+	void connect(final int callId) {
+		submit(LANE_CONNECTION, callId, new Runnable() {
+			@Override
+			public void run() {
+				Connection c = ensureConnection();
+				if (c == null) {
+					report(getAppHandler(), callId, new Exception("Not ready"));
+					return;
+				}
+				c.runWhenReady(new Connection.Task() {
+					@Override
+					public void run(Connection c) {
+						report(c.getHandler(), callId, null);
+					}
+
+					@Override
+					public void fail(Exception e) {
+						report(getAppHandler(), callId, e);
+					}
+				});
+			}
+		});
+	}
+
+	void send(OutboundMessage m) {
+		if (m.isToServer()) {
+			batcher.add(LANE_SERVER, m);
+		} else {
+			batcher.add(LANE_USER_PREFIX + m.getService() + ","
+					+ m.getUserName(), m);
+		}
+	}
+
+	void requestMessage(final int callId, final String mid) {
+		if (mid == null || mid.length() == 0) {
+			report(getAppHandler(), callId, new IllegalArgumentException(
+					"Empty message id"));
+			return;
+		}
+		submit(LANE_REQUEST, callId, new Runnable() {
+			@Override
+			public void run() {
+				requestSingleMessage(callId, mid);
+			}
+		});
+	}
+
+	void requestMessages(final int callId, final Collection<String> mids) {
+		if (mids == null || mids.isEmpty()) {
+			report(getAppHandler(), callId, new IllegalArgumentException(
+					"No message id"));
+			return;
+		}
+		submit(LANE_REQUEST, callId, new Runnable() {
+			@Override
+			public void run() {
+				requestMessageBatch(callId, mids);
+			}
+		});
+	}
+
+	void requestMessages(final int callId, final Date since) {
+		submit(LANE_REQUEST, callId, new Runnable() {
+			@Override
+			public void run() {
+				requestAllSince(callId, since);
+			}
+		});
+	}
+
+	private MessageHandler getAppHandler() {
+		UserInfoProvider uip = getUserInfoProvider();
+		if (uip == null) {
+			return null;
+		}
+		ConnectionInfo cinfo = uip.getConnectionInfo();
+		if (cinfo == null) {
+			return null;
+		}
+		return uip.getMessageHandler(cinfo.getServiceName(),
+				cinfo.getUserName());
+	}
+
+	private void submit(String lane, int callId, Runnable command) {
+		try {
+			executor.execute(lane, command);
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "command rejected: " + e.getMessage());
+			// Report it to the app directly. A full queue says nothing about
+			// the connection, so the supervisor does not need to know.
+			report(getAppHandler(), callId, e);
+		}
+	}
+
+	private void onMessageDigest(Intent intent) {
+		final String service = intent.getStringExtra("service");
+		final String user = intent.getStringExtra("user");
+
+		Connection c;
+		synchronized (connLock) {
+			c = pool.find(service, user);
+		}
+		ConnectionInfo current = c == null ? null : c.getApplied();
+		if (current != null) {
+			// XXX
+			// The client is just invisible, it should has already received
+			// the digest.
+			if (!current.isVisible()) {
+				return;
+			}
+		}
+
+		UserInfoProvider uip = getUserInfoProvider();
+		if (uip == null) {
+			return;
+		}
+		final MessageHandler hd = uip.getMessageHandler(service, user);
+
+		if (hd == null) {
+			return;
+		}
+
+		final String msgId = intent.getStringExtra("msgId");
+		final int size = intent.getIntExtra("size", 0);
+		final HashMap<String, String> params;
+		try {
+			params = MessageCodec.get().decodeMap(
+					intent.getByteArrayExtra("params"));
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Bad digest parameters: " + e.getMessage());
+			return;
+		}
+		final String sender = intent.getStringExtra("sender");
+		final String senderService = intent.getStringExtra("senderService");
+		final long received = intent.getLongExtra("t", 0);
+
+		if (seen != null && !seen.onDigest(msgId)) {
+			// Already delivered, or the message itself was. Nothing to
+			// deliver or prefetch.
+			return;
+		}
+
+		final Runnable deliverDigest = new Runnable() {
+			@Override
+			public void run() {
+				Metrics.GCM_DELIVERY.since(received);
+				if (sender != null) {
+					hd.onMessageDigestFromUser(false, service, user,
+							senderService, sender, size, msgId, params);
+				} else {
+					hd.onMessageDigestFromServer(false, service, user, size,
+							msgId, params);
+				}
+			}
+		};
+
+		if (prefetchMaxSize > 0 && size <= prefetchMaxSize && msgId != null
+				&& msgId.length() > 0 && isCurrentUser(uip, service, user)) {
+			if (prefetchDeliverDirectly) {
+				// The message itself will be delivered instead of the digest,
+				// unless it cannot be fetched or does not come in time.
+				prefetch.expectAndDeliver(msgId, new Runnable() {
+					@Override
+					public void run() {
+						submit(LANE_CALLBACK, -1, deliverDigest);
+					}
+				});
+				prefetchMessage(msgId);
+				return;
+			}
+			prefetch.expect(msgId);
+			prefetchMessage(msgId);
+		}
+		deliverDigest.run();
+	}
+
+	private static boolean isCurrentUser(UserInfoProvider uip, String service,
+			String user) {
+		ConnectionInfo cinfo = uip.getConnectionInfo();
+		return cinfo != null && service.equals(cinfo.getServiceName())
+				&& user.equals(cinfo.getUserName());
+	}
+
+	private Message decodeMessage(Intent intent, int callId) {
+		try {
+			Message msg = MessageCodec.get().decodeMessage(
+					intent.getByteArrayExtra("msg"));
+			if (msg != null) {
+				return msg;
+			}
+			report(getAppHandler(), callId, new Exception("No message"));
+		} catch (IllegalArgumentException e) {
+			report(getAppHandler(), callId, e);
+		}
 		return null;
 	}
 
@@ -393,13 +1478,24 @@ public class MessageCenterService extends Service {
 	public int onStartCommand(final Intent intent, int flags, int startId) {
 		super.onStartCommand(intent, flags, startId);
 		if (intent == null) {
-			this.stopSelf();
-			return START_NOT_STICKY;
+			// Restarted after the process died. The outbox may not be loaded
+			// yet, so whether there is anything left to send is found out
+			// off the main thread.
+			submit(LANE_OUTBOX, -1, new Runnable() {
+				@Override
+				public void run() {
+					if (outbox.isEmpty()) {
+						stopSelf();
+					} else {
+						drainOutbox();
+					}
+				}
+			});
+			return START_STICKY;
 		}
 
 		int cmd = intent.getIntExtra("c", -1);
 		final int callId = intent.getIntExtra("id", -1);
-		final Message msg = (Message) intent.getSerializableExtra("msg");
 
 		if (cmd <= 0 || cmd >= MessageCenterService.CMD_MAX_CMD_ID) {
 			Log.i(TAG, "wrong command: " + cmd);
@@ -407,147 +1503,87 @@ public class MessageCenterService extends Service {
 			return START_NOT_STICKY;
 		}
 
+		Message msg;
 		switch (cmd) {
 		// BOILERPLATE ALERT!
 		case CMD_USER_INFO_READY:
 			this.setUserInfoProvider();
 			this.getRegId();
 			break;
+		case CMD_KEEPALIVE:
+			onKeepaliveAlarm();
+			break;
 		case CMD_REGID_READY:
-			new AsyncTask<Void, Void, Void>() {
+			submit(LANE_CONNECTION, -1, new Runnable() {
 				@Override
-				protected Void doInBackground(Void... params) {
-					subscribe(-1, false);
-					return null;
+				public void run() {
+					Connection c = conn;
+					if (c == null) {
+						// It will subscribe once connected.
+						return;
+					}
+					c.runWhenReady(new Connection.Task() {
+						@Override
+						public void run(Connection c) {
+							scheduleSubscribe(c, c.getApplied());
+						}
+
+						@Override
+						public void fail(Exception e) {
+						}
+					});
 				}
-			}.execute();
+			});
 			break;
 		case CMD_CONNECT:
-			new AsyncTask<Void, Void, Void>() {
-				@Override
-				protected Void doInBackground(Void... params) {
-					connect(callId, false);
-					return null;
-				}
-			}.execute();
+			connect(callId);
 			break;
 		case CMD_ERROR_ACCOUNT_MISSING:
-			new AsyncTask<Void, Void, Void>() {
+			submit(LANE_CALLBACK, -1, new Runnable() {
 				@Override
-				protected Void doInBackground(Void... params) {
-					centerLock.readLock().lock();
-					if (handler != null) {
-						handler.onMissingAccount();
+				public void run() {
+					Connection c = conn;
+					if (c != null && c.getAppHandler() != null) {
+						c.getHandler().onMissingAccount();
 					}
-					centerLock.readLock().unlock();
-					return null;
 				}
-			}.execute();
+			});
 			break;
 		case CMD_SEND_MSG_TO_SERVER:
-			Log.i(TAG, "send message to server");
-			new AsyncTask<Void, Void, Void>() {
-				@Override
-				protected Void doInBackground(Void... params) {
-					sendMessageToServer(callId, msg);
-					return null;
-				}
-			}.execute();
+			msg = decodeMessage(intent, callId);
+			if (msg != null) {
+				send(new OutboundMessage(callId, msg));
+			}
 			break;
 		case CMD_SEND_MSG_TO_USER:
-			Log.i(TAG, "send message to user");
-			new AsyncTask<Void, Void, Void>() {
-				@Override
-				protected Void doInBackground(Void... params) {
-					final String receiver = intent.getStringExtra("username");
-					final String receiverService = intent
-							.getStringExtra("service");
-					final int ttl = intent.getIntExtra("ttl", 0);
-					sendMessageToUser(callId, receiverService, receiver, msg,
-							ttl);
-					return null;
-				}
-			}.execute();
-			break;
-		case CMD_MESSAGE_DIGEST:
-			final String service = intent.getStringExtra("service");
-			final String user = intent.getStringExtra("user");
-
-			this.centerLock.readLock().lock();
-			if (currentConn != null) {
-				// XXX
-				// The client is just invisible, it should has already received
-				// the digest.
-				if (service.equals(currentConn.getServiceName())
-						&& user.equals(currentConn.getUserName())
-						&& !currentConn.isVisible()) {
-					break;
-				}
-			}
-			this.centerLock.readLock().unlock();
-
-			userInfoProviderLock.lock();
-			if (userInfoProvider == null) {
-				userInfoProvider = ResourceManager.getUserInfoProvider(this);
-				if (userInfoProvider == null) {
-					Log.wtf(TAG,
-							"UserInfoProvider is missing. call MessageCenter.init() first!");
-					userInfoProviderLock.unlock();
-					break;
-				}
-			}
-
-			final MessageHandler hd = userInfoProvider.getMessageHandler(
-					service, user);
-			userInfoProviderLock.unlock();
-
-			if (hd == null) {
+			msg = decodeMessage(intent, callId);
+			if (msg == null) {
 				break;
 			}
-
-			new AsyncTask<Void, Void, Void>() {
-				@SuppressWarnings("unchecked")
+			String receiver = intent.getStringExtra("username");
+			String receiverService = intent.getStringExtra("service");
+			int ttl = intent.getIntExtra("ttl", 0);
+			send(new OutboundMessage(callId, receiverService, receiver, msg,
+					ttl));
+			break;
+		case CMD_MESSAGE_DIGEST:
+			submit(LANE_CALLBACK, -1, new Runnable() {
 				@Override
-				protected Void doInBackground(Void... ignored) {
-					String msgId = intent.getStringExtra("msgId");
-					int size = intent.getIntExtra("size", 0);
-					HashMap<String, String> params = ((HashMap<String, String>) intent
-							.getSerializableExtra("params"));
-
-					if (intent.hasExtra("sender")) {
-						String sender = intent.getStringExtra("sender");
-						String senderService = intent.getStringExtra("service");
-						hd.onMessageDigestFromUser(false, service, user,
-								senderService, sender, size, msgId, params);
-					} else {
-						hd.onMessageDigestFromServer(false, service, user,
-								size, msgId, params);
-					}
-					return null;
+				public void run() {
+					onMessageDigest(intent);
 				}
-			}.execute();
+			});
 			break;
 		case CMD_REQUEST_MSG:
-			new AsyncTask<Void, Void, Void>() {
-				@Override
-				protected Void doInBackground(Void... params) {
-					String mid = intent.getStringExtra("mid");
-					if (mid != null && mid.length() > 0) {
-						requestSingleMessage(callId, mid);
-					}
-					return null;
-				}
-			}.execute();
+			requestMessage(callId, intent.getStringExtra("mid"));
+			break;
+		case CMD_REQUEST_MSGS:
+			String[] mids = intent.getStringArrayExtra("mids");
+			requestMessages(callId, mids == null ? null : Arrays.asList(mids));
 			break;
 		case CMD_REQUEST_ALL_CACHED_MSG:
-			new AsyncTask<Void, Void, Void>() {
-				@Override
-				protected Void doInBackground(Void... params) {
-					Date since = (Date) intent.getSerializableExtra("since");
-					requestMessages(callId, since);
-					return null;
-				}
-			}.execute();
+			requestMessages(callId,
+					(Date) intent.getSerializableExtra("since"));
 			break;
 		}
 
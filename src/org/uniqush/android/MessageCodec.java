@@ -0,0 +1,349 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.uniqush.client.Message;
+
+/**
+ * A compact binary encoding for Messages and string maps, used instead of Java
+ * serialization when they are put into Intents or written to disk.
+ * 
+ * Integers are varints. A string is its length in UTF-8 bytes plus one,
+ * followed by the bytes; a byte array likewise. A map is its size plus one,
+ * followed by the keys and values. Zero stands for null. A Message is a
+ * version byte, its header map and its body.
+ * 
+ * An instance reuses its buffer from one encoding to the next and is not
+ * thread safe. {@link #get()} returns the calling thread's instance.
+ */
+class MessageCodec {
+	private static final byte MESSAGE_VERSION = 1;
+	private static final int INITIAL_BUFFER_SIZE = 256;
+	// Larger buffers are not kept after use.
+	private static final int MAX_KEPT_BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<MessageCodec> codecs = new ThreadLocal<MessageCodec>() {
+		@Override
+		protected MessageCodec initialValue() {
+			return new MessageCodec();
+		}
+	};
+
+	public static MessageCodec get() {
+		return codecs.get();
+	}
+
+	private byte[] out;
+	private int outPos;
+	private byte[] in;
+	private int inPos;
+
+	public MessageCodec() {
+		this.out = new byte[INITIAL_BUFFER_SIZE];
+		this.outPos = 0;
+	}
+
+	public byte[] encode(Message msg) {
+		reset();
+		writeMessage(msg);
+		return toByteArray();
+	}
+
+	public byte[] encode(Map<String, String> map) {
+		reset();
+		writeMap(map);
+		return toByteArray();
+	}
+
+	/**
+	 * @return null if data is null.
+	 * @throws IllegalArgumentException
+	 *             if data is malformed.
+	 */
+	public Message decodeMessage(byte[] data) {
+		if (data == null) {
+			return null;
+		}
+		setInput(data);
+		try {
+			return readMessage();
+		} finally {
+			in = null;
+		}
+	}
+
+	/**
+	 * @return null if data is null.
+	 * @throws IllegalArgumentException
+	 *             if data is malformed.
+	 */
+	public HashMap<String, String> decodeMap(byte[] data) {
+		if (data == null) {
+			return null;
+		}
+		setInput(data);
+		try {
+			return readMap();
+		} finally {
+			in = null;
+		}
+	}
+
+	// Encoding
+
+	public void reset() {
+		outPos = 0;
+	}
+
+	/**
+	 * @return what has been written since the last reset().
+	 */
+	public byte[] toByteArray() {
+		byte[] ret = new byte[outPos];
+		System.arraycopy(out, 0, ret, 0, outPos);
+		if (out.length > MAX_KEPT_BUFFER_SIZE) {
+			out = new byte[INITIAL_BUFFER_SIZE];
+		}
+		outPos = 0;
+		return ret;
+	}
+
+	private void ensure(int n) {
+		if (outPos + n <= out.length) {
+			return;
+		}
+		int size = out.length * 2;
+		while (size < outPos + n) {
+			size *= 2;
+		}
+		byte[] b = new byte[size];
+		System.arraycopy(out, 0, b, 0, outPos);
+		out = b;
+	}
+
+	public void writeByte(int b) {
+		ensure(1);
+		out[outPos++] = (byte) b;
+	}
+
+	/**
+	 * Negative values take five bytes.
+	 */
+	public void writeVarint(int v) {
+		ensure(5);
+		while ((v & ~0x7F) != 0) {
+			out[outPos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out[outPos++] = (byte) v;
+	}
+
+	public void writeString(String s) {
+		if (s == null) {
+			writeVarint(0);
+			return;
+		}
+		int len = s.length();
+		int utf8Len = len;
+		for (int i = 0; i < len; i++) {
+			if (s.charAt(i) >= 0x80) {
+				utf8Len = utf8Length(s, i);
+				break;
+			}
+		}
+		writeVarint(utf8Len + 1);
+		ensure(utf8Len);
+		byte[] b = out;
+		int p = outPos;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b[p++] = (byte) c;
+			} else if (c < 0x800) {
+				b[p++] = (byte) (0xC0 | (c >> 6));
+				b[p++] = (byte) (0x80 | (c & 0x3F));
+			} else if (isSurrogatePair(s, i)) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				b[p++] = (byte) (0xF0 | (cp >> 18));
+				b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				b[p++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (isSurrogate(c)) {
+				// A lone surrogate; String.getBytes() does the same.
+				b[p++] = '?';
+			} else {
+				b[p++] = (byte) (0xE0 | (c >> 12));
+				b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[p++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		outPos = p;
+	}
+
+	private static boolean isSurrogatePair(String s, int i) {
+		return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(i + 1));
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	// The length in UTF-8 of s, whose first `from' chars are ASCII.
+	private static int utf8Length(String s, int from) {
+		int len = s.length();
+		int n = from;
+		for (int i = from; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n += 1;
+			} else if (c < 0x800) {
+				n += 2;
+			} else if (isSurrogatePair(s, i)) {
+				n += 4;
+				i++;
+			} else if (isSurrogate(c)) {
+				n += 1;
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+	public void writeBytes(byte[] data) {
+		if (data == null) {
+			writeVarint(0);
+			return;
+		}
+		writeVarint(data.length + 1);
+		ensure(data.length);
+		System.arraycopy(data, 0, out, outPos, data.length);
+		outPos += data.length;
+	}
+
+	public void writeMap(Map<String, String> map) {
+		if (map == null) {
+			writeVarint(0);
+			return;
+		}
+		writeVarint(map.size() + 1);
+		for (Map.Entry<String, String> e : map.entrySet()) {
+			writeString(e.getKey());
+			writeString(e.getValue());
+		}
+	}
+
+	public void writeMessage(Message msg) {
+		if (msg == null) {
+			writeByte(0);
+			return;
+		}
+		writeByte(MESSAGE_VERSION);
+		writeMap(msg.getHeader());
+		writeBytes(msg.getBody());
+	}
+
+	// Decoding
+
+	public void setInput(byte[] data) {
+		in = data;
+		inPos = 0;
+	}
+
+	private void need(int n) {
+		if (n < 0 || in.length - inPos < n) {
+			throw new IllegalArgumentException("truncated data");
+		}
+	}
+
+	public int readByte() {
+		need(1);
+		return in[inPos++] & 0xFF;
+	}
+
+	public int readVarint() {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+	public String readString() {
+		int len = readVarint() - 1;
+		if (len < 0) {
+			return null;
+		}
+		need(len);
+		String s = new String(in, inPos, len, UTF8);
+		inPos += len;
+		return s;
+	}
+
+	public byte[] readBytes() {
+		int len = readVarint() - 1;
+		if (len < 0) {
+			return null;
+		}
+		need(len);
+		byte[] b = new byte[len];
+		System.arraycopy(in, inPos, b, 0, len);
+		inPos += len;
+		return b;
+	}
+
+	public HashMap<String, String> readMap() {
+		int size = readVarint() - 1;
+		if (size < 0) {
+			return null;
+		}
+		// Every entry takes at least two bytes.
+		need(size * 2);
+		HashMap<String, String> map = new HashMap<String, String>(
+				size * 4 / 3 + 1);
+		for (int i = 0; i < size; i++) {
+			String k = readString();
+			map.put(k, readString());
+		}
+		return map;
+	}
+
+	public Message readMessage() {
+		int version = readByte();
+		if (version == 0) {
+			return null;
+		}
+		if (version != MESSAGE_VERSION) {
+			throw new IllegalArgumentException("unknown message version "
+					+ version);
+		}
+		HashMap<String, String> header = readMap();
+		byte[] body = readBytes();
+		return new Message(header, body);
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+/**
+ * The ResultCallback of MessageCenterBinder.requestMessages(msgIds, callback)
+ * may also implement this interface to hear about every id on its own.
+ */
+public interface MessageRequestListener {
+	/**
+	 * Called for every id before the callback's onResult(), unless the whole
+	 * batch is turned down (e.g. too many pending commands). The message
+	 * itself arrives later through the handler's onMessageFromServer() or
+	 * onMessageFromUser(), unless it had already been delivered.
+	 * 
+	 * @param e
+	 *            null if the message has been requested, or needed no request
+	 *            because it had been fetched or delivered already.
+	 */
+	public void onMessageRequested(String msgId, Exception e);
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * Counters and histograms on the library's hot paths.
+ * 
+ * Nothing is recorded until an exporter is set. Until then recording a value
+ * costs one volatile read, and {@link #start()} does not even read the clock.
+ */
+final class Metrics {
+	private final static String TAG = "UniqushMetrics";
+
+	// Must come before the metrics below: they add themselves to these lists.
+	private final static ArrayList<Counter> counters = new ArrayList<Counter>();
+	private final static ArrayList<Histogram> histograms = new ArrayList<Histogram>();
+
+	private static volatile boolean enabled = false;
+	private static volatile MetricsExporter exporter;
+	private static ScheduledExecutorService timer;
+	private static ScheduledFuture<?> exportTask;
+
+	public final static Counter RECONNECTS = new Counter(
+			"connection.reconnects");
+	public final static Counter CONNECTION_FAILURES = new Counter(
+			"connection.failures");
+	public final static Counter COMMANDS_REJECTED = new Counter(
+			"command.rejected");
+	public final static Counter DUPLICATES_DROPPED = new Counter(
+			"dedup.dropped");
+	public final static Counter DUPLICATES_PASSED = new Counter(
+			"dedup.passed");
+	public final static Counter COMPRESSION_THRESHOLD_CHANGES = new Counter(
+			"compression.threshold_changes");
+	public final static Counter COMPRESSION_BYPASSED = new Counter(
+			"compression.bypassed");
+	public final static Counter DICTIONARY_MISSES = new Counter(
+			"dictionary.misses");
+	public final static Counter KEEPALIVES = new Counter("keepalive.sent");
+	public final static Counter DNS_CACHE_HITS = new Counter("dns.cache_hits");
+	public final static Counter TLS_FULL_HANDSHAKES = new Counter(
+			"tls.full_handshakes");
+	public final static Counter TLS_RESUMED = new Counter("tls.resumed");
+	public final static Counter KEEPALIVES_DROPPED = new Counter(
+			"keepalive.dropped");
+
+	public final static Histogram CONNECT = new Histogram(
+			"connection.connect_ns");
+	public final static Histogram CONFIG = new Histogram(
+			"connection.config_ns");
+	public final static Histogram VISIBILITY = new Histogram(
+			"connection.visibility_ns");
+	public final static Histogram FIRST_SEND = new Histogram(
+			"connection.first_send_ns");
+	public final static Histogram STATE_CONNECTING = new Histogram(
+			"connection.state.connecting_ns");
+	public final static Histogram STATE_CONFIGURING = new Histogram(
+			"connection.state.configuring_ns");
+	public final static Histogram STATE_READY = new Histogram(
+			"connection.state.ready_ns");
+	public final static Histogram REQUEST_LATENCY = new Histogram(
+			"request.latency_ns");
+	public final static Histogram SEND_LATENCY = new Histogram(
+			"send.latency_ns");
+	public final static Histogram SEND_BATCH_SIZE = new Histogram(
+			"send.batch_size");
+	public final static Histogram REQUEST_BATCH_SIZE = new Histogram(
+			"request.batch_size");
+	public final static Histogram QUEUE_DEPTH = new Histogram(
+			"command.queue_depth");
+	public final static Histogram CONN_LOCK_WAIT = new Histogram(
+			"lock.connection.wait_ns");
+	public final static Histogram USER_INFO_LOCK_WAIT = new Histogram(
+			"lock.user_info_provider.wait_ns");
+	public final static Histogram USER_INFO_PROVIDER_LOAD = new Histogram(
+			"user_info_provider.load_ns");
+	public final static Histogram GCM_DELIVERY = new Histogram(
+			"gcm.push_to_handler_ns");
+	public final static Histogram FETCH_PAUSE = new Histogram(
+			"fetch.pause_ns");
+	public final static Histogram COMPRESSION_RATIO = new Histogram(
+			"compression.sample_ratio_permille");
+	public final static Histogram COMPRESSION_SAMPLE = new Histogram(
+			"compression.sample_ns");
+	public final static Histogram DICTIONARY_BYTES_SAVED = new Histogram(
+			"dictionary.bytes_saved");
+	public final static Histogram KEEPALIVE_INTERVAL = new Histogram(
+			"keepalive.interval_ms");
+	public final static Histogram DNS_LOOKUP = new Histogram(
+			"dns.lookup_ns");
+	public final static Histogram CONNECT_RACE = new Histogram(
+			"connection.race_ns");
+	public final static Histogram TLS_HANDSHAKE = new Histogram(
+			"tls.handshake_ns");
+
+	private Metrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the start time to pass to {@link Histogram#since(long)}, or 0 if
+	 *         nothing is being recorded.
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Replace the exporter and (re)schedule the periodic export.
+	 * 
+	 * @param e
+	 *            null to stop recording.
+	 * @param intervalMillis
+	 *            <= 0: export only when {@link #export()} is called.
+	 */
+	public static synchronized void setExporter(MetricsExporter e,
+			long intervalMillis) {
+		if (exportTask != null) {
+			exportTask.cancel(false);
+			exportTask = null;
+		}
+		exporter = e;
+		enabled = e != null;
+		if (e == null || intervalMillis <= 0) {
+			return;
+		}
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "UniqushMetrics");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		exportTask = timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				export();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Report every metric to the exporter, if there is one.
+	 */
+	public static void export() {
+		MetricsExporter e = exporter;
+		if (e == null) {
+			return;
+		}
+		// One export at a time, so that the exporter sees them in order.
+		synchronized (counters) {
+			try {
+				for (Counter c : counters) {
+					e.onCounter(c.name, c.value.get());
+				}
+				for (Histogram h : histograms) {
+					long[] buckets = new long[Histogram.BUCKETS];
+					for (int i = 0; i < buckets.length; i++) {
+						buckets[i] = h.buckets.get(i);
+					}
+					e.onHistogram(h.name, h.count.get(), h.sum.get(), buckets);
+				}
+			} catch (RuntimeException ex) {
+				// Do not let a broken exporter stop the periodic export.
+				Log.w(TAG, "exporter failed: " + ex.toString());
+			}
+		}
+	}
+
+	final static class Counter {
+		private final String name;
+		private final AtomicLong value;
+
+		private Counter(String name) {
+			this.name = name;
+			this.value = new AtomicLong(0);
+			counters.add(this);
+		}
+
+		public void inc() {
+			if (enabled) {
+				value.incrementAndGet();
+			}
+		}
+	}
+
+	final static class Histogram {
+		// One bucket per power of two; enough for any non-negative long.
+		final static int BUCKETS = 64;
+
+		private final String name;
+		private final AtomicLong count;
+		private final AtomicLong sum;
+		private final AtomicLongArray buckets;
+
+		private Histogram(String name) {
+			this.name = name;
+			this.count = new AtomicLong(0);
+			this.sum = new AtomicLong(0);
+			this.buckets = new AtomicLongArray(BUCKETS);
+			histograms.add(this);
+		}
+
+		public void record(long value) {
+			if (!enabled) {
+				return;
+			}
+			if (value < 0) {
+				value = 0;
+			}
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+		}
+
+		/**
+		 * Record the time since start, as returned by Metrics.start().
+		 */
+		public void since(long start) {
+			if (start != 0) {
+				record(System.nanoTime() - start);
+			}
+		}
+	}
+}
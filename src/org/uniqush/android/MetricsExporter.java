@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+/**
+ * Receives the library's metrics. Set it with
+ * {@link MessageCenter#setMetricsExporter(MetricsExporter, int)}.
+ * 
+ * Every export reports each metric once, from a single thread. The values are
+ * cumulative since the exporter was first set in this process; take the
+ * difference between two exports to get a rate.
+ */
+public interface MetricsExporter {
+	/**
+	 * @param name
+	 *            e.g. "connection.reconnects"
+	 * @param value
+	 *            the number of times it happened.
+	 */
+	public void onCounter(String name, long value);
+
+	/**
+	 * Names ending with "_ns" are durations in nanoseconds.
+	 * 
+	 * @param count
+	 *            number of values recorded.
+	 * @param sum
+	 *            sum of the values recorded.
+	 * @param buckets
+	 *            buckets[0] is the number of zeros; buckets[i], i > 0, is the
+	 *            number of values v where 2^(i-1) <= v < 2^i.
+	 */
+	public void onHistogram(String name, long count, long sum, long[] buckets);
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import org.uniqush.client.Message;
+
+/**
+ * A message waiting to be sent, either to the server or to another user.
+ */
+class OutboundMessage {
+	private int callId;
+	private String service;
+	private String username;
+	private Message msg;
+	private int ttl;
+
+	/**
+	 * A message sent to the server.
+	 */
+	public OutboundMessage(int callId, Message msg) {
+		this(callId, null, null, msg, 0);
+	}
+
+	/**
+	 * A message sent to another user.
+	 */
+	public OutboundMessage(int callId, String service, String username,
+			Message msg, int ttl) {
+		this.callId = callId;
+		this.service = service;
+		this.username = username;
+		this.msg = msg;
+		this.ttl = ttl;
+	}
+
+	public int getCallId() {
+		return callId;
+	}
+
+	/**
+	 * @return true if the message is sent to the server; false if it is sent
+	 *         to another user.
+	 */
+	public boolean isToServer() {
+		return username == null;
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	public String getUserName() {
+		return username;
+	}
+
+	public Message getMessage() {
+		return msg;
+	}
+
+	public int getTtl() {
+		return ttl;
+	}
+}
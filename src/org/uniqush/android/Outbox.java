@@ -0,0 +1,458 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import android.util.Log;
+
+/**
+ * A bounded, persistent FIFO queue of outbound messages.
+ *
+ * Messages which cannot be sent because the connection is not ready are kept
+ * here until the connection comes up. Every queued message is written to a
+ * journal file so that it survives the death of the process. Writes are group
+ * committed: all records queued since the last commit are written and synced
+ * together on the timer thread, so there is one fsync per group instead of one
+ * per message.
+ *
+ * The journal is a sequence of records: [type:byte][seq:long][len:int][data].
+ * A MESSAGE record carries a queued message, encoded with MessageCodec. An
+ * ACK record means every message whose seq is not greater than the ACK's seq
+ * has been sent. The journal is rewritten with only the live messages once it
+ * grows too large.
+ *
+ * load() may be called on any thread; until it has finished, the other
+ * methods wait, so that nothing is queued or taken before the messages left
+ * by the previous process. The call ids of those are not kept: nobody is
+ * waiting for their results any more.
+ */
+class Outbox {
+	private static final String TAG = "UniqushOutbox";
+	private static final byte RECORD_ACK = 2;
+	private static final byte RECORD_MESSAGE = 3;
+	private static final int RECORD_HEADER_SIZE = 1 + 8 + 4;
+	private static final long MIN_COMPACT_SIZE = 64 * 1024;
+
+	private static class Entry {
+		long seq;
+		OutboundMessage msg;
+		byte[] record;
+	}
+
+	private File file;
+	private ScheduledExecutorService timer;
+	private int maxMessages;
+	private long maxBytes;
+
+	private ArrayDeque<Entry> entries;
+	private long liveBytes;
+	private long nextSeq;
+	private ByteArrayOutputStream pending;
+	private boolean commitScheduled;
+	private boolean closed;
+	private boolean loaded;
+
+	// Only accessed with commitLock held.
+	final private Object commitLock = new Object();
+	private long journalSize;
+
+	private Runnable commitTask = new Runnable() {
+		@Override
+		public void run() {
+			commit();
+		}
+	};
+
+	/**
+	 * @param file
+	 *            The journal file.
+	 * @param timer
+	 *            Commits are executed on it.
+	 * @param maxMessages
+	 *            Max number of queued messages.
+	 * @param maxBytes
+	 *            Max size of the queued messages, in bytes.
+	 */
+	public Outbox(File file, ScheduledExecutorService timer, int maxMessages,
+			long maxBytes) {
+		this.file = file;
+		this.timer = timer;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.entries = new ArrayDeque<Entry>();
+		this.liveBytes = 0;
+		this.nextSeq = 1;
+		this.pending = new ByteArrayOutputStream();
+		this.commitScheduled = false;
+		this.closed = false;
+		this.loaded = false;
+		this.journalSize = 0;
+	}
+
+	/**
+	 * Read the messages left by the previous process, if any.
+	 */
+	public void load() {
+		ArrayList<Entry> loaded = new ArrayList<Entry>();
+		long acked = 0;
+		if (file.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(file)));
+				while (true) {
+					byte type = in.readByte();
+					long seq = in.readLong();
+					int len = in.readInt();
+					if (len < 0 || len > maxBytes) {
+						throw new IOException("corrupted record");
+					}
+					byte[] data = new byte[len];
+					in.readFully(data);
+					if (type == RECORD_ACK) {
+						acked = Math.max(acked, seq);
+					} else if (type == RECORD_MESSAGE) {
+						Entry e = new Entry();
+						e.seq = seq;
+						e.msg = decode(data);
+						e.record = record(type, seq, data);
+						loaded.add(e);
+					}
+				}
+			} catch (EOFException e) {
+				// Normal end of the journal, or a record cut off by a crash.
+			} catch (Exception e) {
+				Log.e(TAG, "Error on loading outbox: " + e.toString());
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		synchronized (this) {
+			for (Entry e : loaded) {
+				nextSeq = Math.max(nextSeq, e.seq + 1);
+				if (e.seq <= acked) {
+					continue;
+				}
+				if (entries.size() >= maxMessages
+						|| liveBytes + e.record.length > maxBytes) {
+					break;
+				}
+				entries.add(e);
+				liveBytes += e.record.length;
+			}
+			nextSeq = Math.max(nextSeq, acked + 1);
+			this.loaded = true;
+			notifyAll();
+		}
+		synchronized (commitLock) {
+			// Drop the acks and the broken tail, if any.
+			journalSize = file.length();
+			rewrite(snapshot());
+		}
+		Log.i(TAG, size() + " messages loaded");
+	}
+
+	/**
+	 * Called with the outbox locked.
+	 */
+	private void awaitLoaded() {
+		boolean interrupted = false;
+		while (!loaded) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queue the message. It will be written to the journal with the next group
+	 * commit.
+	 *
+	 * @return false if the outbox is full.
+	 */
+	public boolean offer(OutboundMessage msg) {
+		byte[] data;
+		try {
+			data = encode(msg);
+		} catch (IOException e) {
+			Log.e(TAG, "Error on encoding message: " + e.toString());
+			return false;
+		}
+		boolean commitNow;
+		synchronized (this) {
+			awaitLoaded();
+			Entry e = new Entry();
+			e.seq = nextSeq;
+			e.msg = msg;
+			e.record = record(RECORD_MESSAGE, e.seq, data);
+			if (entries.size() >= maxMessages
+					|| liveBytes + e.record.length > maxBytes) {
+				return false;
+			}
+			nextSeq++;
+			entries.add(e);
+			liveBytes += e.record.length;
+			pending.write(e.record, 0, e.record.length);
+			commitNow = scheduleCommit();
+		}
+		if (commitNow) {
+			commit();
+		}
+		return true;
+	}
+
+	public synchronized boolean isEmpty() {
+		awaitLoaded();
+		return entries.isEmpty();
+	}
+
+	public synchronized int size() {
+		awaitLoaded();
+		return entries.size();
+	}
+
+	/**
+	 * @return at most n messages from the head of the queue. They are not
+	 *         removed.
+	 */
+	public synchronized List<OutboundMessage> peek(int n) {
+		awaitLoaded();
+		ArrayList<OutboundMessage> ret = new ArrayList<OutboundMessage>(
+				Math.min(n, entries.size()));
+		Iterator<Entry> iter = entries.iterator();
+		while (ret.size() < n && iter.hasNext()) {
+			ret.add(iter.next().msg);
+		}
+		return ret;
+	}
+
+	/**
+	 * Remove n messages from the head of the queue, because they have been
+	 * sent.
+	 */
+	public void remove(int n) {
+		boolean commitNow;
+		synchronized (this) {
+			awaitLoaded();
+			long seq = -1;
+			for (int i = 0; i < n && !entries.isEmpty(); i++) {
+				Entry e = entries.poll();
+				liveBytes -= e.record.length;
+				seq = e.seq;
+			}
+			if (seq < 0) {
+				return;
+			}
+			byte[] ack = record(RECORD_ACK, seq, new byte[0]);
+			pending.write(ack, 0, ack.length);
+			commitNow = scheduleCommit();
+		}
+		if (commitNow) {
+			commit();
+		}
+	}
+
+	/**
+	 * Commit everything synchronously. Messages offered after this call are
+	 * committed synchronously too.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		commit();
+	}
+
+	/**
+	 * Should be called with the outbox locked.
+	 *
+	 * @return true if the caller should commit right away, after releasing the
+	 *         lock.
+	 */
+	private boolean scheduleCommit() {
+		if (closed) {
+			return true;
+		}
+		if (!commitScheduled) {
+			commitScheduled = true;
+			timer.execute(commitTask);
+		}
+		return false;
+	}
+
+	private List<byte[]> snapshot() {
+		synchronized (this) {
+			ArrayList<byte[]> live = new ArrayList<byte[]>(entries.size());
+			for (Entry e : entries) {
+				live.add(e.record);
+			}
+			pending.reset();
+			return live;
+		}
+	}
+
+	private void commit() {
+		synchronized (commitLock) {
+			byte[] data = null;
+			List<byte[]> live = null;
+			synchronized (this) {
+				commitScheduled = false;
+				if ((entries.isEmpty() && journalSize > 0)
+						|| (journalSize > MIN_COMPACT_SIZE && journalSize > 2 * liveBytes)) {
+					live = snapshot();
+				} else {
+					data = pending.toByteArray();
+					pending.reset();
+				}
+			}
+			if (live != null) {
+				rewrite(live);
+			} else if (data.length > 0) {
+				append(data);
+			}
+		}
+	}
+
+	private void append(byte[] data) {
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file, true);
+			out.write(data);
+			out.getFD().sync();
+			journalSize += data.length;
+		} catch (IOException e) {
+			Log.e(TAG, "Error on writing outbox: " + e.toString());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void rewrite(List<byte[]> live) {
+		if (live.isEmpty()) {
+			file.delete();
+			journalSize = 0;
+			return;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		long size = 0;
+		try {
+			out = new FileOutputStream(tmp);
+			for (byte[] r : live) {
+				out.write(r);
+				size += r.length;
+			}
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				throw new IOException("cannot rename " + tmp.getPath());
+			}
+			journalSize = size;
+		} catch (IOException e) {
+			Log.e(TAG, "Error on rewriting outbox: " + e.toString());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static byte[] record(byte type, long seq, byte[] data) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(
+				RECORD_HEADER_SIZE + data.length);
+		DataOutputStream out = new DataOutputStream(buf);
+		try {
+			out.writeByte(type);
+			out.writeLong(seq);
+			out.writeInt(data.length);
+			out.write(data);
+		} catch (IOException e) {
+			// Never happens on a ByteArrayOutputStream.
+		}
+		return buf.toByteArray();
+	}
+
+	private static byte[] encode(OutboundMessage msg) throws IOException {
+		MessageCodec codec = MessageCodec.get();
+		codec.reset();
+		// The call id is not kept; see decode().
+		codec.writeVarint(-1);
+		if (msg.isToServer()) {
+			codec.writeByte(1);
+		} else {
+			codec.writeByte(0);
+			codec.writeString(msg.getService());
+			codec.writeString(msg.getUserName());
+			codec.writeVarint(msg.getTtl());
+		}
+		codec.writeMessage(msg.getMessage());
+		return codec.toByteArray();
+	}
+
+	private static OutboundMessage decode(byte[] data) {
+		MessageCodec codec = MessageCodec.get();
+		codec.setInput(data);
+		// Whoever was waiting for the result is gone, and a callback or an
+		// id of the app's, which the next process reuses, would get the
+		// result of another call.
+		codec.readVarint();
+		int callId = -1;
+		if (codec.readByte() != 0) {
+			return new OutboundMessage(callId, codec.readMessage());
+		}
+		String service = codec.readString();
+		String username = codec.readString();
+		int ttl = codec.readVarint();
+		return new OutboundMessage(callId, service, username,
+				codec.readMessage(), ttl);
+	}
+}
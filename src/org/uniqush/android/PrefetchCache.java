@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.uniqush.client.Message;
+
+/**
+ * Keeps track of messages fetched ahead of the app's request.
+ *
+ * A message is expected once its fetch has been issued. When it arrives, it is
+ * held until the app asks for it, unless the app has asked already, in which
+ * case it is delivered right away. The number of entries is bounded; the
+ * oldest ones are dropped first, and the app then simply fetches them again.
+ *
+ * A message fetched to be delivered instead of its digest has a fallback,
+ * which delivers the digest. It runs, once, if the fetch fails or the
+ * message has not arrived within the timeout, e.g. because it has expired
+ * or the connection broke after the request was written.
+ */
+class PrefetchCache {
+	/**
+	 * A message which has been fetched but not delivered.
+	 */
+	public static class Held {
+		public String dstService;
+		public String dstUser;
+		// null if the message is from the server.
+		public String srcService;
+		public String srcUser;
+		public String id;
+		public Message msg;
+	}
+
+	private static class Pending {
+		long deadline;
+		boolean deliverOnArrival;
+		// null if there is nothing to do when the message does not come.
+		Runnable fallback;
+		ScheduledFuture<?> timeout;
+		// The message has arrived, or the fallback has run.
+		boolean done;
+	}
+
+	private LinkedHashMap<String, Object> entries;
+	private long timeoutMillis;
+	private ScheduledExecutorService timer;
+
+	/**
+	 * @param capacity
+	 *            Max number of messages being fetched or held.
+	 * @param timeoutMillis
+	 *            If an expected message has not arrived within this time, the
+	 *            app's request is no longer answered from the cache, and
+	 *            its fallback runs.
+	 */
+	public PrefetchCache(final int capacity, long timeoutMillis,
+			ScheduledExecutorService timer) {
+		this.timeoutMillis = timeoutMillis;
+		this.timer = timer;
+		this.entries = new LinkedHashMap<String, Object>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * The message is being fetched.
+	 */
+	public synchronized void expect(String id) {
+		if (!entries.containsKey(id)) {
+			Pending p = new Pending();
+			p.deadline = System.currentTimeMillis() + timeoutMillis;
+			p.deliverOnArrival = false;
+			entries.put(id, p);
+		}
+	}
+
+	/**
+	 * The message is being fetched, and is to be delivered when it arrives.
+	 * 
+	 * @param fallback
+	 *            Run if the fetch fails, or on the timer's thread if the
+	 *            message does not arrive within the timeout. A fallback given
+	 *            earlier for the same message is dropped.
+	 */
+	public void expectAndDeliver(final String id, Runnable fallback) {
+		final Pending p = new Pending();
+		p.deadline = System.currentTimeMillis() + timeoutMillis;
+		p.deliverOnArrival = true;
+		p.fallback = fallback;
+		synchronized (this) {
+			Object old = entries.put(id, p);
+			if (old instanceof Pending) {
+				Pending o = (Pending) old;
+				o.done = true;
+				if (o.timeout != null) {
+					o.timeout.cancel(false);
+				}
+			}
+			try {
+				p.timeout = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						expire(id, p);
+					}
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// The service is going away; there is nobody to deliver to.
+				p.done = true;
+			}
+		}
+	}
+
+	private void expire(String id, Pending p) {
+		synchronized (this) {
+			if (p.done) {
+				return;
+			}
+			p.done = true;
+			// It may have been pushed out by newer entries already.
+			if (entries.get(id) == p) {
+				entries.remove(id);
+			}
+		}
+		p.fallback.run();
+	}
+
+	/**
+	 * The fetch has failed. The fallback, if any, is run now.
+	 */
+	public void forget(String id) {
+		Runnable fallback = null;
+		synchronized (this) {
+			Object e = entries.get(id);
+			if (!(e instanceof Pending)) {
+				return;
+			}
+			entries.remove(id);
+			Pending p = (Pending) e;
+			if (p.fallback != null && !p.done) {
+				p.done = true;
+				if (p.timeout != null) {
+					p.timeout.cancel(false);
+				}
+				fallback = p.fallback;
+			}
+		}
+		if (fallback != null) {
+			fallback.run();
+		}
+	}
+
+	/**
+	 * A message has arrived.
+	 * 
+	 * @return true if it is held, so it should not be delivered now.
+	 */
+	public synchronized boolean offer(Held m) {
+		Object e = entries.get(m.id);
+		if (!(e instanceof Pending)) {
+			return false;
+		}
+		Pending p = (Pending) e;
+		if (p.deliverOnArrival) {
+			entries.remove(m.id);
+			p.done = true;
+			if (p.timeout != null) {
+				p.timeout.cancel(false);
+			}
+			return false;
+		}
+		entries.put(m.id, m);
+		return true;
+	}
+
+	/**
+	 * The app asks for the message.
+	 * 
+	 * @return the held message, which is removed from the cache; or null.
+	 */
+	public synchronized Held take(String id) {
+		Object e = entries.get(id);
+		if (e instanceof Held) {
+			entries.remove(id);
+			return (Held) e;
+		}
+		return null;
+	}
+
+	/**
+	 * The app asks for a message which is still being fetched.
+	 * 
+	 * @return true if the message is being fetched and will be delivered when
+	 *         it arrives; false if the app should fetch it itself.
+	 */
+	public synchronized boolean deliverOnArrival(String id) {
+		Object e = entries.get(id);
+		if (!(e instanceof Pending)) {
+			return false;
+		}
+		Pending p = (Pending) e;
+		if (p.deadline < System.currentTimeMillis()) {
+			entries.remove(id);
+			return false;
+		}
+		p.deliverOnArrival = true;
+		return true;
+	}
+}
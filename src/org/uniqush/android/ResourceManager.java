@@ -19,7 +19,9 @@ package org.uniqush.android;
 
 import java.lang.reflect.Constructor;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -34,6 +36,29 @@ class ResourceManager {
 	private static String PREF_NAME = "uniqush";
 	private static String USER_INFO_PROVIDER = "user-info-provider";
 	private static String USER_SUBSCRIPTION_PREFIX = "subscribed:";
+	private static String KEEPALIVE_PREFIX = "keepalive:";
+	private static String KEEPALIVE = "keepalive";
+	private static String TLS = "tls";
+	private static String COMMAND_WORKERS = "command-workers";
+	private static String COMMAND_QUEUE_CAPACITY = "command-queue-capacity";
+	private static String SEND_BATCH_WINDOW = "send-batch-window";
+	private static String SEND_BATCH_SIZE = "send-batch-size";
+	private static String PREFETCH_MAX_SIZE = "prefetch-max-size";
+	private static String PREFETCH_DELIVER_DIRECTLY = "prefetch-deliver-directly";
+	private static String DEDUP_CAPACITY = "dedup-capacity";
+	private static String DEDUP_PERSISTENT = "dedup-persistent";
+	private static String CONNECTION_POOL_SIZE = "connection-pool-size";
+	private static String CONNECTION_IDLE_TIMEOUT = "connection-idle-timeout";
+	private static String FETCH_PAGE_SIZE = "fetch-page-size";
+	private static String ADAPTIVE_COMPRESSION = "adaptive-compression";
+
+	final protected static int DEFAULT_COMMAND_WORKERS = 2;
+	final protected static int DEFAULT_COMMAND_QUEUE_CAPACITY = 256;
+	final protected static int DEFAULT_SEND_BATCH_WINDOW = 10;
+	final protected static int DEFAULT_SEND_BATCH_SIZE = 32;
+	final protected static int DEFAULT_DEDUP_CAPACITY = 0;
+	final protected static int DEFAULT_CONNECTION_POOL_SIZE = 1;
+	final protected static int DEFAULT_CONNECTION_IDLE_TIMEOUT = 5 * 60;
 
 	/**
 	 * TODO put it somewhere else. Dear java: don't you think this method is
@@ -76,6 +101,13 @@ class ResourceManager {
 		return sb.toString();
 	}
 
+	// The provider is cached for the life of the process. It is created with
+	// the application context so that it does not hold on to a service.
+	final private static Object providerLock = new Object();
+	private static String providerClassName;
+	private static Constructor<?> providerConstructor;
+	private static volatile UserInfoProvider provider;
+
 	public static void setUserInfoProvider(Context context, String className)
 			throws ClassNotFoundException, SecurityException,
 			NoSuchMethodException {
@@ -86,7 +118,15 @@ class ResourceManager {
 					+ " is not an implementation of "
 					+ UserInfoProvider.class.getName());
 		}
-		userInfoProvider.getConstructor(Context.class);
+		Constructor<?> constructor = userInfoProvider.getConstructor(Context.class);
+
+		synchronized (providerLock) {
+			if (!className.equals(providerClassName)) {
+				provider = null;
+				providerClassName = className;
+				providerConstructor = constructor;
+			}
+		}
 
 		SharedPreferences pref = context.getSharedPreferences(PREF_NAME,
 				Context.MODE_PRIVATE);
@@ -97,39 +137,240 @@ class ResourceManager {
 	}
 
 	public static UserInfoProvider getUserInfoProvider(Context context) {
-		SharedPreferences pref = context.getSharedPreferences(PREF_NAME,
-				Context.MODE_PRIVATE);
-		String className = pref.getString(USER_INFO_PROVIDER, null);
-		if (className == null) {
-			Log.i(TAG, "user info provider has not been set");
+		UserInfoProvider p = provider;
+		if (p != null) {
+			return p;
+		}
+		synchronized (providerLock) {
+			if (provider != null) {
+				return provider;
+			}
+			long start = Metrics.start();
+			String className = providerClassName;
+			if (className == null) {
+				SharedPreferences pref = context.getSharedPreferences(
+						PREF_NAME, Context.MODE_PRIVATE);
+				className = pref.getString(USER_INFO_PROVIDER, null);
+				if (className == null) {
+					Log.i(TAG, "user info provider has not been set");
+					return null;
+				}
+			}
+			Log.i(TAG, "user info provider class name: " + className);
+
+			try {
+				if (providerConstructor == null
+						|| !className.equals(providerClassName)) {
+					Class<?> userInfoProvider = Class.forName(className);
+					providerConstructor = userInfoProvider
+							.getConstructor(Context.class);
+					providerClassName = className;
+				}
+				Object obj = providerConstructor.newInstance(context
+						.getApplicationContext());
+				if (obj instanceof UserInfoProvider) {
+					provider = (UserInfoProvider) obj;
+					Metrics.USER_INFO_PROVIDER_LOAD.since(start);
+					return provider;
+				}
+				throw new InstantiationException(
+						"should implement org.uniqush.client.UserInfoProvider");
+			} catch (Exception e) {
+				Log.e(TAG, e.getClass().getName() + ": " + e.getMessage());
+			}
 			return null;
 		}
-		Log.i(TAG, "user info provider class name: " + className);
+	}
 
-		try {
-			Class<?> userInfoProvider = Class.forName(className);
-			Constructor<?> constructor = userInfoProvider.getConstructor(Context.class);
-			Object obj = constructor.newInstance(context);
-			if (obj instanceof UserInfoProvider) {
-				return (UserInfoProvider) obj;
+	/**
+	 * @return the subscription state of every (service, username) pair, keyed
+	 *         by "service,username".
+	 */
+	public static HashMap<String, Boolean> loadSubscriptions(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		HashMap<String, Boolean> ret = new HashMap<String, Boolean>();
+		for (Map.Entry<String, ?> e : pref.getAll().entrySet()) {
+			if (e.getKey().startsWith(USER_SUBSCRIPTION_PREFIX)
+					&& e.getValue() instanceof Boolean) {
+				ret.put(e.getKey().substring(USER_SUBSCRIPTION_PREFIX.length()),
+						(Boolean) e.getValue());
+			}
+		}
+		return ret;
+	}
+
+	public static void saveSubscriptions(Context context, Map<String, Boolean> subs) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		for (Map.Entry<String, Boolean> e : subs.entrySet()) {
+			editor.putBoolean(USER_SUBSCRIPTION_PREFIX + e.getKey(), e.getValue());
+		}
+		editor.commit();
+	}
+
+	public static HashMap<String, String> loadKeepaliveIntervals(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		HashMap<String, String> ret = new HashMap<String, String>();
+		for (Map.Entry<String, ?> e : pref.getAll().entrySet()) {
+			if (e.getKey().startsWith(KEEPALIVE_PREFIX)
+					&& e.getValue() instanceof String) {
+				ret.put(e.getKey().substring(KEEPALIVE_PREFIX.length()),
+						(String) e.getValue());
 			}
-			throw new InstantiationException(
-					"should implement org.uniqush.client.UserInfoProvider");
-		} catch (Exception e) {
-			Log.e(TAG, e.getClass().getName() + ": " + e.getMessage());
 		}
-		return null;
+		return ret;
+	}
+
+	public static void saveKeepaliveIntervals(Context context, Map<String, String> intervals) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		for (Map.Entry<String, String> e : intervals.entrySet()) {
+			editor.putString(KEEPALIVE_PREFIX + e.getKey(), e.getValue());
+		}
+		editor.commit();
 	}
-	
-	public static void setSubscribed(Context context, String service, String username, boolean sub) {
+
+	public static void setKeepalive(Context context, boolean enabled) {
 		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
 		Editor editor = pref.edit();
-		editor.putBoolean(USER_SUBSCRIPTION_PREFIX + service + "," + username, sub);
+		editor.putBoolean(KEEPALIVE, enabled);
 		editor.commit();
 	}
-	
-	public static boolean subscribed(Context context, String service, String username) {
+
+	public static boolean getKeepalive(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getBoolean(KEEPALIVE, true);
+	}
+
+	public static void setCommandExecutorConfig(Context context, int workers,
+			int queueCapacity) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putInt(COMMAND_WORKERS, workers);
+		editor.putInt(COMMAND_QUEUE_CAPACITY, queueCapacity);
+		editor.commit();
+	}
+
+	public static int getCommandWorkers(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(COMMAND_WORKERS, DEFAULT_COMMAND_WORKERS);
+	}
+
+	public static int getCommandQueueCapacity(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(COMMAND_QUEUE_CAPACITY, DEFAULT_COMMAND_QUEUE_CAPACITY);
+	}
+
+	public static void setSendBatchConfig(Context context, int windowMillis,
+			int maxBatchSize) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putInt(SEND_BATCH_WINDOW, windowMillis);
+		editor.putInt(SEND_BATCH_SIZE, maxBatchSize);
+		editor.commit();
+	}
+
+	public static int getSendBatchWindow(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(SEND_BATCH_WINDOW, DEFAULT_SEND_BATCH_WINDOW);
+	}
+
+	public static int getSendBatchSize(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(SEND_BATCH_SIZE, DEFAULT_SEND_BATCH_SIZE);
+	}
+
+	public static void setPrefetchConfig(Context context, int maxSize,
+			boolean deliverDirectly) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putInt(PREFETCH_MAX_SIZE, maxSize);
+		editor.putBoolean(PREFETCH_DELIVER_DIRECTLY, deliverDirectly);
+		editor.commit();
+	}
+
+	public static int getPrefetchMaxSize(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(PREFETCH_MAX_SIZE, 0);
+	}
+
+	public static boolean getPrefetchDeliverDirectly(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getBoolean(PREFETCH_DELIVER_DIRECTLY, false);
+	}
+
+	public static void setDedupConfig(Context context, int capacity,
+			boolean persistent) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putInt(DEDUP_CAPACITY, capacity);
+		editor.putBoolean(DEDUP_PERSISTENT, persistent);
+		editor.commit();
+	}
+
+	public static int getDedupCapacity(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(DEDUP_CAPACITY, DEFAULT_DEDUP_CAPACITY);
+	}
+
+	public static boolean getDedupPersistent(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getBoolean(DEDUP_PERSISTENT, false);
+	}
+
+	public static void setConnectionPoolConfig(Context context,
+			int maxConnections, int idleTimeoutSeconds) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putInt(CONNECTION_POOL_SIZE, maxConnections);
+		editor.putInt(CONNECTION_IDLE_TIMEOUT, idleTimeoutSeconds);
+		editor.commit();
+	}
+
+	public static int getConnectionPoolSize(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(CONNECTION_POOL_SIZE, DEFAULT_CONNECTION_POOL_SIZE);
+	}
+
+	public static int getConnectionIdleTimeout(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(CONNECTION_IDLE_TIMEOUT,
+				DEFAULT_CONNECTION_IDLE_TIMEOUT);
+	}
+
+	public static void setFetchPageSize(Context context, int pageSize) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putInt(FETCH_PAGE_SIZE, pageSize);
+		editor.commit();
+	}
+
+	public static int getFetchPageSize(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getInt(FETCH_PAGE_SIZE, 0);
+	}
+
+	public static void setAdaptiveCompression(Context context, boolean enabled) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putBoolean(ADAPTIVE_COMPRESSION, enabled);
+		editor.commit();
+	}
+
+	public static boolean getAdaptiveCompression(Context context) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		return pref.getBoolean(ADAPTIVE_COMPRESSION, false);
+	}
+
+	public static void setTls(Context context, boolean enabled) {
+		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+		Editor editor = pref.edit();
+		editor.putBoolean(TLS, enabled);
+		editor.commit();
+	}
+
+	public static boolean getTls(Context context) {
 		SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-		return pref.getBoolean(USER_SUBSCRIPTION_PREFIX + service + "," + username, false);
+		return pref.getBoolean(TLS, false);
 	}
 }
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Remembers the ids of the messages and digests which have been delivered to
+ * the app, so that the same message reaching the app more than once (through
+ * GCM, as an online digest, and as a full message) is only handled once.
+ *
+ * - A message is dropped if a message with the same id has been delivered.
+ * - A digest is dropped if a digest or a message with the same id has been
+ *   delivered.
+ *
+ * Ids are kept as 64-bit fingerprints in fixed-size tables, so the memory used
+ * does not depend on the length of the ids. When a table is full, the oldest
+ * id is forgotten.
+ *
+ * With persistTo(), new ids are written back to a file a little later, on
+ * the timer thread, so that they survive the process being killed without
+ * onDestroy(). flush() writes them right away.
+ */
+class SeenIdCache {
+	private static final String TAG = "UniqushSeenIdCache";
+	private static final long WRITE_BEHIND_DELAY = 5000;
+
+	private FingerprintSet messages;
+	private FingerprintSet digests;
+	// null if the ids are not saved.
+	private File file;
+	private ScheduledExecutorService timer;
+	private boolean dirty;
+	private boolean flushScheduled;
+	// Held through a whole save, so that saves write one at a time and in
+	// the order of their snapshots.
+	private final Object saveLock = new Object();
+
+	private Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public SeenIdCache(int capacity) {
+		this.messages = new FingerprintSet(capacity);
+		this.digests = new FingerprintSet(capacity);
+	}
+
+	/**
+	 * A message is about to be delivered.
+	 * 
+	 * @return false if it has been delivered already, so it should be dropped.
+	 */
+	public synchronized boolean onMessage(String id) {
+		if (id == null) {
+			return true;
+		}
+		if (!messages.add(fingerprint(id))) {
+			Metrics.DUPLICATES_DROPPED.inc();
+			return false;
+		}
+		Metrics.DUPLICATES_PASSED.inc();
+		changed();
+		return true;
+	}
+
+	/**
+	 * A digest is about to be delivered.
+	 * 
+	 * @return false if the digest, or the message itself, has been delivered
+	 *         already, so it should be dropped.
+	 */
+	public synchronized boolean onDigest(String id) {
+		if (id == null) {
+			return true;
+		}
+		long fp = fingerprint(id);
+		if (messages.contains(fp) || !digests.add(fp)) {
+			Metrics.DUPLICATES_DROPPED.inc();
+			return false;
+		}
+		Metrics.DUPLICATES_PASSED.inc();
+		changed();
+		return true;
+	}
+
+	/**
+	 * @return true if the message has been delivered.
+	 */
+	public synchronized boolean isDelivered(String id) {
+		return id != null && messages.contains(fingerprint(id));
+	}
+
+	/**
+	 * Save the ids to the file from now on. Call load() first.
+	 */
+	public synchronized void persistTo(File file,
+			ScheduledExecutorService timer) {
+		this.file = file;
+		this.timer = timer;
+	}
+
+	/**
+	 * Called with the monitor held.
+	 */
+	private void changed() {
+		if (file == null) {
+			return;
+		}
+		dirty = true;
+		if (!flushScheduled) {
+			flushScheduled = true;
+			try {
+				timer.schedule(flushTask, WRITE_BEHIND_DELAY,
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// The service is shutting down, and flushes on its way out.
+				flushScheduled = false;
+			}
+		}
+	}
+
+	/**
+	 * Write the new ids, if any, on the timer thread now.
+	 */
+	public void flushSoon() {
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+		}
+		try {
+			timer.execute(flushTask);
+		} catch (RejectedExecutionException e) {
+		}
+	}
+
+	/**
+	 * Write the new ids, if any, on the calling thread.
+	 */
+	public void flush() {
+		File f;
+		synchronized (this) {
+			flushScheduled = false;
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			f = file;
+		}
+		save(f);
+	}
+
+	public void load(File file) {
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			synchronized (this) {
+				messages.read(in);
+				digests.read(in);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error on loading seen ids: " + e.toString());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take a snapshot, then write it without holding the monitor. It goes
+	 * to a temporary file first, so a kill halfway leaves the old one. Saves
+	 * from several threads, e.g. a write-behind and onDestroy(), are done one
+	 * after the other.
+	 */
+	public void save(File file) {
+		synchronized (saveLock) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(buf);
+			try {
+				synchronized (this) {
+					messages.write(data);
+					digests.write(data);
+				}
+			} catch (IOException e) {
+				// Not from a ByteArrayOutputStream.
+			}
+			File tmp = new File(file.getPath() + ".tmp");
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(tmp);
+				buf.writeTo(out);
+				out.close();
+				out = null;
+				if (!tmp.renameTo(file)) {
+					throw new IOException("cannot rename " + tmp);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Error on saving seen ids: " + e.toString());
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a over the chars of the id. 0 is used to mark empty slots,
+	 * so it is never returned.
+	 */
+	static long fingerprint(String id) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			h ^= id.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * A bounded set of fingerprints. The ring keeps them in insertion order
+	 * so the oldest can be evicted; the table is an open-addressing hash set
+	 * with linear probing, at most half full.
+	 */
+	private static class FingerprintSet {
+		private long[] ring;
+		private int head;
+		private int size;
+		private long[] table;
+		private int mask;
+
+		FingerprintSet(int capacity) {
+			if (capacity <= 0) {
+				capacity = 1;
+			}
+			ring = new long[capacity];
+			head = 0;
+			size = 0;
+			int n = 2;
+			while (n < capacity * 2) {
+				n <<= 1;
+			}
+			table = new long[n];
+			mask = n - 1;
+		}
+
+		private int slot(long fp) {
+			return (int) (fp ^ (fp >>> 32)) & mask;
+		}
+
+		boolean contains(long fp) {
+			for (int i = slot(fp);; i = (i + 1) & mask) {
+				if (table[i] == 0) {
+					return false;
+				}
+				if (table[i] == fp) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return false if it is already in the set.
+		 */
+		boolean add(long fp) {
+			if (contains(fp)) {
+				return false;
+			}
+			if (size == ring.length) {
+				remove(ring[head]);
+				head = (head + 1) % ring.length;
+				size--;
+			}
+			ring[(head + size) % ring.length] = fp;
+			size++;
+			int i = slot(fp);
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = fp;
+			return true;
+		}
+
+		private void remove(long fp) {
+			int i = slot(fp);
+			while (table[i] != fp) {
+				if (table[i] == 0) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			// Backward-shift deletion, so no tombstones are needed.
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (table[j] == 0) {
+					break;
+				}
+				int k = slot(table[j]);
+				if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+					table[i] = table[j];
+					i = j;
+				}
+			}
+			table[i] = 0;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeLong(ring[(head + i) % ring.length]);
+			}
+		}
+
+		void read(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				long fp = in.readLong();
+				if (fp != 0) {
+					add(fp);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects outbound messages for a short time window, then hands them over
+ * as one batch.
+ *
+ * Messages are batched per lane, so a batch never mixes messages whose order
+ * relative to each other is not already fixed by the lane. A batch is flushed
+ * when the window expires or when it reaches the max batch size, whichever
+ * comes first.
+ *
+ * Batches are taken under the lock but handed over outside it. The batches
+ * of a lane are handed over by one thread at a time, in the order they were
+ * taken: a thread which finds another one handing over on the lane leaves its
+ * batch for that one.
+ */
+class SendBatcher {
+	public interface Flusher {
+		/**
+		 * Called without the batcher's lock held, one batch of a lane at a
+		 * time.
+		 */
+		public void flush(String lane, List<OutboundMessage> batch);
+	}
+
+	private static class Lane {
+		// The batch being filled; null if there is none.
+		List<OutboundMessage> open;
+		// Taken, and waiting to be handed over.
+		final ArrayDeque<List<OutboundMessage>> taken = new ArrayDeque<List<OutboundMessage>>();
+		boolean handingOver;
+	}
+
+	private ScheduledExecutorService timer;
+	private long windowMillis;
+	private int maxBatchSize;
+	private Flusher flusher;
+	final private HashMap<String, Lane> lanes;
+
+	/**
+	 * @param timer
+	 *            Used to flush the batches when the window expires.
+	 * @param windowMillis
+	 *            <= 0: Do not batch; every message is flushed right away.
+	 * @param maxBatchSize
+	 *            Max number of messages in one batch.
+	 * @param flusher
+	 */
+	public SendBatcher(ScheduledExecutorService timer, long windowMillis,
+			int maxBatchSize, Flusher flusher) {
+		this.timer = timer;
+		this.windowMillis = windowMillis;
+		this.maxBatchSize = maxBatchSize <= 0 ? 1 : maxBatchSize;
+		this.flusher = flusher;
+		this.lanes = new HashMap<String, Lane>();
+	}
+
+	public void add(final String lane, OutboundMessage msg) {
+		Lane l;
+		synchronized (lanes) {
+			l = lanes.get(lane);
+			if (l == null) {
+				l = new Lane();
+				lanes.put(lane, l);
+			}
+			if (l.open == null) {
+				l.open = new ArrayList<OutboundMessage>(maxBatchSize);
+				if (windowMillis > 0 && maxBatchSize > 1) {
+					timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							flush(lane);
+						}
+					}, windowMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			l.open.add(msg);
+			if (l.open.size() < maxBatchSize && windowMillis > 0) {
+				return;
+			}
+			if (!take(l)) {
+				return;
+			}
+		}
+		handOver(lane, l);
+	}
+
+	/**
+	 * Move the open batch to the ones waiting to be handed over. Called with
+	 * the lock held.
+	 * 
+	 * @return true if the caller should hand them over.
+	 */
+	private boolean take(Lane l) {
+		if (l.open != null && !l.open.isEmpty()) {
+			l.taken.add(l.open);
+		}
+		l.open = null;
+		if (l.handingOver || l.taken.isEmpty()) {
+			return false;
+		}
+		l.handingOver = true;
+		return true;
+	}
+
+	private void handOver(String lane, Lane l) {
+		boolean done = false;
+		try {
+			while (true) {
+				List<OutboundMessage> batch;
+				synchronized (lanes) {
+					batch = l.taken.poll();
+					if (batch == null) {
+						l.handingOver = false;
+						done = true;
+						if (l.open == null && lanes.get(lane) == l) {
+							lanes.remove(lane);
+						}
+						return;
+					}
+				}
+				flusher.flush(lane, batch);
+			}
+		} finally {
+			if (!done) {
+				synchronized (lanes) {
+					l.handingOver = false;
+				}
+			}
+		}
+	}
+
+	private void flush(String lane) {
+		Lane l;
+		synchronized (lanes) {
+			// The batch may have been flushed because it was full. In that
+			// case, a newer batch may be open with its own timer. Flushing it
+			// early is harmless.
+			l = lanes.get(lane);
+			if (l == null || !take(l)) {
+				return;
+			}
+		}
+		handOver(lane, l);
+	}
+
+	public void flushAll() {
+		HashMap<String, Lane> mine = new HashMap<String, Lane>();
+		synchronized (lanes) {
+			for (Map.Entry<String, Lane> e : lanes.entrySet()) {
+				if (take(e.getValue())) {
+					mine.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		for (Map.Entry<String, Lane> e : mine.entrySet()) {
+			handOver(e.getKey(), e.getValue());
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+/**
+ * In-memory view of the subscription state of every (service, username)
+ * pair.
+ *
+ * The state is loaded from the preferences once, on the timer thread, or on
+ * the first lookup if that comes earlier. Changes are visible right
+ * away and written back in batches, a little later, on the timer thread.
+ * flush() writes the pending changes synchronously.
+ */
+class SubscriptionStore {
+	private static final long WRITE_BEHIND_DELAY = 1000;
+
+	private Context context;
+	private ScheduledExecutorService timer;
+	private HashMap<String, Boolean> state;
+	private HashMap<String, Boolean> dirty;
+	private boolean flushScheduled;
+
+	private Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public SubscriptionStore(Context context, ScheduledExecutorService timer) {
+		this.context = context;
+		this.timer = timer;
+		this.state = null;
+		this.dirty = new HashMap<String, Boolean>();
+		this.flushScheduled = false;
+		timer.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SubscriptionStore.this) {
+					load();
+				}
+			}
+		});
+	}
+
+	private static String key(String service, String username) {
+		return service + "," + username;
+	}
+
+	private void load() {
+		if (state == null) {
+			state = ResourceManager.loadSubscriptions(context);
+		}
+	}
+
+	public synchronized boolean isSubscribed(String service, String username) {
+		load();
+		Boolean sub = state.get(key(service, username));
+		return sub != null && sub.booleanValue();
+	}
+
+	public synchronized void setSubscribed(String service, String username,
+			boolean sub) {
+		load();
+		String k = key(service, username);
+		state.put(k, sub);
+		dirty.put(k, sub);
+		if (!flushScheduled) {
+			flushScheduled = true;
+			try {
+				timer.schedule(flushTask, WRITE_BEHIND_DELAY,
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// The service is shutting down.
+				flush();
+			}
+		}
+	}
+
+	public void flush() {
+		Map<String, Boolean> changes;
+		synchronized (this) {
+			flushScheduled = false;
+			if (dirty.isEmpty()) {
+				return;
+			}
+			changes = dirty;
+			dirty = new HashMap<String, Boolean>();
+		}
+		ResourceManager.saveSubscriptions(context, changes);
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.android;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Carries one connection over TLS. The client library only makes plain TCP
+ * connections, so it is pointed at a port on the loopback interface instead
+ * of the server; the tunnel accepts that one connection and relays it to the
+ * server over TLS. A connection to the loopback port is only relayed if it
+ * comes from this app: the owner of the connecting socket is looked up in
+ * /proc/net/tcp, and others are turned away while the tunnel keeps waiting.
+ * From Android 10 on, apps cannot read that table; the tunnel cannot be made
+ * safe there, and open() fails.
+ *
+ * All tunnels should share one SSLContext: its session cache is what lets a
+ * reconnect to the same server resume the previous session with an
+ * abbreviated handshake. Sessions are cached by host and port, i.e. per
+ * ConnectionInfo.
+ */
+class TlsTunnel {
+	private static final String TAG = "UniqushTlsTunnel";
+	static final int CONNECT_TIMEOUT = 10 * 1000;
+	// The client library has to connect within this time.
+	static final int ACCEPT_TIMEOUT = 10 * 1000;
+	private static final int BUFFER_SIZE = 8192;
+	private static final int SESSION_CACHE_SIZE = 32;
+	private static final int SESSION_TIMEOUT = 12 * 60 * 60;
+	private static final String[] PROC_NET_TCP = { "/proc/net/tcp",
+			"/proc/net/tcp6" };
+	private static final int OWNER_UNKNOWN = -2;
+
+	private static SSLContext sharedContext;
+
+	private final SSLContext context;
+	private final ExecutorService threads;
+	private SSLSocket remote;
+	private ServerSocket listener;
+	private Socket local;
+	private boolean closed;
+
+	/**
+	 * Use the context for all tunnels from now on, e.g. to trust a private
+	 * CA. null goes back to the platform's default.
+	 */
+	static synchronized void setSharedContext(SSLContext context) {
+		sharedContext = context;
+	}
+
+	static synchronized SSLContext getSharedContext() throws IOException {
+		if (sharedContext == null) {
+			try {
+				SSLContext c = SSLContext.getInstance("TLS");
+				c.init(null, null, null);
+				c.getClientSessionContext().setSessionCacheSize(
+						SESSION_CACHE_SIZE);
+				c.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+				sharedContext = c;
+			} catch (GeneralSecurityException e) {
+				throw new IOException("no TLS: " + e);
+			}
+		}
+		return sharedContext;
+	}
+
+	public TlsTunnel(SSLContext context, ExecutorService threads) {
+		this.context = context;
+		this.threads = threads;
+		this.closed = false;
+	}
+
+	/**
+	 * Connect to the server and do the TLS handshake, then wait for the
+	 * connection to be relayed.
+	 * 
+	 * @param host
+	 *            The host name, which the server's certificate has to match.
+	 * @param address
+	 *            The address to connect to.
+	 * @return the loopback port to connect to instead of the server.
+	 */
+	public int open(String host, String address, int port) throws IOException {
+		if (!canFindOwners()) {
+			throw new IOException(
+					"TLS tunnel cannot tell apps apart on this device");
+		}
+		Socket raw = new Socket();
+		SSLSocket ssl;
+		try {
+			raw.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+			// The handshake and the relay both write in small pieces.
+			raw.setTcpNoDelay(true);
+			ssl = (SSLSocket) context.getSocketFactory().createSocket(raw,
+					host, port, true);
+		} catch (IOException e) {
+			raw.close();
+			throw e;
+		}
+		synchronized (this) {
+			remote = ssl;
+			if (closed) {
+				ssl.close();
+				throw new IOException("tunnel closed");
+			}
+		}
+		handshake(ssl, host);
+
+		ServerSocket l = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"));
+		l.setSoTimeout(ACCEPT_TIMEOUT);
+		synchronized (this) {
+			listener = l;
+			if (closed) {
+				close();
+				throw new IOException("tunnel closed");
+			}
+		}
+		try {
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					relay();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			close();
+			throw new IOException("service is shutting down");
+		}
+		return l.getLocalPort();
+	}
+
+	private void handshake(SSLSocket ssl, String host) throws IOException {
+		boolean verify = false;
+		try {
+			SSLParameters params = ssl.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			ssl.setSSLParameters(params);
+		} catch (NoSuchMethodError e) {
+			// Not before Android 7; checked after the handshake instead.
+			verify = true;
+		}
+		long wallStart = System.currentTimeMillis();
+		long start = Metrics.start();
+		try {
+			ssl.startHandshake();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		Metrics.TLS_HANDSHAKE.since(start);
+		SSLSession session = ssl.getSession();
+		if (verify
+				&& !HttpsURLConnection.getDefaultHostnameVerifier().verify(
+						host, session)) {
+			close();
+			throw new SSLPeerUnverifiedException("certificate does not match "
+					+ host);
+		}
+		// A resumed session was made by an earlier handshake.
+		if (session.getCreationTime() < wallStart) {
+			Metrics.TLS_RESUMED.inc();
+		} else {
+			Metrics.TLS_FULL_HANDSHAKES.inc();
+		}
+	}
+
+	/**
+	 * @return true if findOwner() can read the connection table.
+	 */
+	static boolean canFindOwners() {
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(
+					PROC_NET_TCP[0]));
+			try {
+				return in.readLine() != null;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the uid which owns the local end of the connection from
+	 *         localPort to remotePort on the loopback interface; or
+	 *         OWNER_UNKNOWN if it cannot be told.
+	 */
+	static int findOwner(int localPort, int remotePort) {
+		// e.g. "0100007F:1F90"; the port is the part after the colon.
+		String local = String.format(":%04X", localPort);
+		String remote = String.format(":%04X", remotePort);
+		for (String file : PROC_NET_TCP) {
+			BufferedReader in = null;
+			try {
+				in = new BufferedReader(new FileReader(file));
+				String line = in.readLine(); // the header
+				while ((line = in.readLine()) != null) {
+					String[] f = line.trim().split("\\s+");
+					// sl local rem st queues tr retrnsmt uid ...
+					if (f.length > 7 && f[1].endsWith(local)
+							&& f[2].endsWith(remote)) {
+						return Integer.parseInt(f[7]);
+					}
+				}
+			} catch (IOException e) {
+				// Not readable, or not there.
+			} catch (NumberFormatException e) {
+				return OWNER_UNKNOWN;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+		return OWNER_UNKNOWN;
+	}
+
+	/**
+	 * @return true if the connection is known to come from this app.
+	 */
+	private static boolean isOwn(Socket s) {
+		int owner = findOwner(s.getPort(), s.getLocalPort());
+		return owner != OWNER_UNKNOWN && owner == Process.myUid();
+	}
+
+	/**
+	 * Accept the client library's connection and relay both ways until
+	 * either side closes.
+	 */
+	private void relay() {
+		Socket s = null;
+		long deadline = System.currentTimeMillis() + ACCEPT_TIMEOUT;
+		try {
+			while (true) {
+				s = listener.accept();
+				if (isOwn(s)) {
+					break;
+				}
+				Log.w(TAG, "turned away a connection from another app");
+				closeQuietly(s);
+				s = null;
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					throw new SocketTimeoutException();
+				}
+				listener.setSoTimeout((int) left);
+			}
+		} catch (SocketTimeoutException e) {
+			Log.w(TAG, "nobody connected to the tunnel");
+			close();
+			return;
+		} catch (IOException e) {
+			close();
+			return;
+		} finally {
+			// Only one connection is relayed; nobody else gets in.
+			try {
+				listener.close();
+			} catch (IOException e) {
+			}
+		}
+		final Socket accepted = s;
+		try {
+			accepted.setTcpNoDelay(true);
+		} catch (IOException e) {
+		}
+		synchronized (this) {
+			local = accepted;
+			if (closed) {
+				close();
+				return;
+			}
+		}
+		try {
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					pump(remote, accepted);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			close();
+			return;
+		}
+		pump(accepted, remote);
+	}
+
+	private void pump(Socket from, Socket to) {
+		byte[] buf = new byte[BUFFER_SIZE];
+		try {
+			InputStream in = from.getInputStream();
+			OutputStream out = to.getOutputStream();
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// Closed by either side.
+		} finally {
+			close();
+		}
+	}
+
+	public void close() {
+		Socket r;
+		ServerSocket l;
+		Socket s;
+		synchronized (this) {
+			closed = true;
+			r = remote;
+			l = listener;
+			s = local;
+		}
+		closeQuietly(s);
+		closeQuietly(r);
+		if (l != null) {
+			try {
+				l.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}